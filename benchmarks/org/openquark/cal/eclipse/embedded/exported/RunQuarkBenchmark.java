@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * RunQuarkBenchmark.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openquark.cal.compiler.FieldName;
+import org.openquark.cal.compiler.MessageLogger;
+import org.openquark.cal.compiler.SourceModelUtilities;
+import org.openquark.cal.compiler.SourceModel.Expr;
+import org.openquark.cal.compiler.io.OutputPolicy;
+import org.openquark.cal.eclipse.embedded.exported.RunQuark.InputTuple;
+
+/**
+ * Times the hot paths of the RunQuark runtime, so that changes to it can be
+ * judged against numbers.
+ * <p>
+ * Each benchmark runs for a warm-up period and is then timed for a 
+ * measurement period, and the average time per operation is printed.  A 
+ * benchmark that fails is reported and the others still run.
+ * <p>
+ * The benchmarks are not part of the plugin build.  The benchmark uses 
+ * package private parts of the runtime, so it is compiled together with 
+ * the runtime sources.  From the root of this plugin:
+ * <pre>
+ * javac -source 1.5 -target 1.5 -d bench-bin -sourcepath exported -classpath CAL_JARS 
+ *     benchmarks/org/openquark/cal/eclipse/embedded/exported/RunQuarkBenchmark.java
+ * java -classpath bench-bin:CAL_JARS:CAL_WORKSPACE 
+ *     org.openquark.cal.eclipse.embedded.exported.RunQuarkBenchmark [benchmark name prefix]
+ * </pre>
+ * where CAL_JARS are the jars of the org.openquark.cal.platform, 
+ * org.openquark.cal.runtime, org.openquark.util and org.openquark.import 
+ * plugins, and CAL_WORKSPACE is the directory or jar that holds the 
+ * cal.samples.cws workspace and its modules.  Use ';' instead of ':' to 
+ * separate class path entries on Windows.
+ * Record the output when a change to the runtime is made, so that the next
+ * change can be compared against it.
+ */
+public class RunQuarkBenchmark {
+
+    private static final long WARM_UP_MILLIS = 2000;
+    private static final long MEASURE_MILLIS = 5000;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    
+    /** results are stored here so that the work that produced them is not optimized away */
+    static volatile Object sink;
+    
+    /**
+     * One operation to be timed
+     */
+    private static abstract class Benchmark {
+        final String name;
+        
+        Benchmark(String name) {
+            this.name = name;
+        }
+        
+        /**
+         * @param iteration the number of operations run before this one
+         */
+        abstract void run(long iteration) throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String prefix = args.length > 0 ? args[0] : "";
+        
+        // compile the workspace up front so that it is not part of any benchmark
+        RunQuark.warmUp().get();
+        RunQuark.setConcurrencyMode(RunQuark.ConcurrencyMode.THREAD_LOCAL, THREADS);
+        Metrics.setEnabled(false);
+        
+        System.out.println("benchmark                                ns/op");
+        for (final Benchmark benchmark : benchmarks()) {
+            if (benchmark.name.startsWith(prefix)) {
+                try {
+                    report(benchmark.name, measure(benchmark));
+                } catch (Exception e) {
+                    reportFailure(benchmark.name, e);
+                }
+            }
+        }
+        if ("evaluateExpression.threaded".startsWith(prefix)) {
+            String name = "evaluateExpression.threaded(" + THREADS + ")";
+            try {
+                report(name, measureThreaded());
+            } catch (Exception e) {
+                reportFailure(name, e);
+            }
+        }
+    }
+    
+    private static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        benchmarks.add(new Benchmark("evaluateExpression.cold") {
+            void run(long iteration) throws Exception {
+                // a new expression each time, so that every call compiles
+                sink = RunQuark.evaluateExpressionThrowing(iteration + " + (x :: Int)", 
+                        new InputTuple[] { new InputTuple(new Integer(1), null, "x") }, 
+                        OutputPolicy.DEFAULT_OUTPUT_POLICY, null, 0, 0, true, false);
+            }
+        });
+        benchmarks.add(new Benchmark("evaluateExpression.warm") {
+            void run(long iteration) throws Exception {
+                sink = RunQuark.evaluateExpressionThrowing("1 + (x :: Int)", 
+                        new InputTuple[] { new InputTuple(new Integer(1), null, "x") }, 
+                        OutputPolicy.DEFAULT_OUTPUT_POLICY, null, 0, 0, true, false);
+            }
+        });
+        
+        final Integer scalar = new Integer(42);
+        final List<Integer> largeList = new ArrayList<Integer>();
+        for (int cnt = 0; cnt < 100000; cnt++) {
+            largeList.add(new Integer(cnt));
+        }
+        // records are maps keyed by field name
+        final Map<FieldName, Object> map = new HashMap<FieldName, Object>();
+        for (int cnt = 0; cnt < 100; cnt++) {
+            map.put(FieldName.make("field" + cnt), new Double(cnt));
+        }
+        benchmarks.add(new Benchmark("inferInputPolicy.scalar") {
+            void run(long iteration) {
+                sink = RunQuark.inferInputPolicy(scalar);
+            }
+        });
+        benchmarks.add(new Benchmark("inferInputPolicy.largeList") {
+            void run(long iteration) {
+                sink = RunQuark.inferInputPolicy(largeList);
+            }
+        });
+        benchmarks.add(new Benchmark("inferInputPolicy.map") {
+            void run(long iteration) {
+                sink = RunQuark.inferInputPolicy(map);
+            }
+        });
+        
+        final int numSplices = 64;
+        StringBuffer sum = new StringBuffer("0");
+        final Pair<String, Expr>[] splices = new Pair[numSplices];
+        for (int cnt = 0; cnt < numSplices; cnt++) {
+            sum.append(" + x").append(cnt);
+            splices[cnt] = new Pair<String, Expr>("x" + cnt, 
+                    SourceModelUtilities.TextParsing.parseExprIntoSourceModel(
+                            Integer.toString(cnt), new MessageLogger()));
+        }
+        final Expr sumExpr = SourceModelUtilities.TextParsing.parseExprIntoSourceModel(
+                sum.toString(), new MessageLogger());
+        benchmarks.add(new Benchmark("spliceInSourceModelParams.64") {
+            void run(long iteration) {
+                sink = RunQuark.spliceInSourceModelParams(sumExpr, splices);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("declareModule.unchanged") {
+            void run(long iteration) {
+                RunQuark.declareModule(moduleText(0), "Benchmark.Module", 0, 0, true, false);
+            }
+        });
+        benchmarks.add(new Benchmark("declareModule.changed") {
+            void run(long iteration) {
+                RunQuark.declareModule(moduleText(iteration), "Benchmark.Module", 0, 0, true, false);
+            }
+        });
+        
+        return benchmarks;
+    }
+    
+    private static String moduleText(long value) {
+        return "module Benchmark.Module;\nimport Cal.Core.Prelude;\n" +
+                "public benchmarkValue = " + value + " :: Cal.Core.Prelude.Int;\n";
+    }
+    
+    /**
+     * @return the average nanoseconds per operation
+     */
+    private static double measure(Benchmark benchmark) throws Exception {
+        long iteration = 0;
+        long warmUpEnd = System.currentTimeMillis() + WARM_UP_MILLIS;
+        while (System.currentTimeMillis() < warmUpEnd) {
+            benchmark.run(iteration++);
+        }
+        
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + MEASURE_MILLIS * 1000000L;
+        long now;
+        do {
+            benchmark.run(iteration++);
+            ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        return (double) (now - start) / ops;
+    }
+    
+    /**
+     * @return the average nanoseconds per operation over all threads, so 
+     * that lower is better, as for the other benchmarks
+     */
+    private static double measureThreaded() throws Exception {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final long warmUpEnd = System.currentTimeMillis() + WARM_UP_MILLIS;
+        final long end = warmUpEnd + MEASURE_MILLIS;
+        for (int cnt = 0; cnt < THREADS; cnt++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        long count = 0;
+                        long now;
+                        while ((now = System.currentTimeMillis()) < end) {
+                            sink = RunQuark.evaluateExpressionThrowing("1 + (x :: Int)", 
+                                    new InputTuple[] { new InputTuple(new Integer(1), null, "x") }, 
+                                    OutputPolicy.DEFAULT_OUTPUT_POLICY, null, 0, 0, true, false);
+                            if (now >= warmUpEnd) {
+                                count++;
+                            }
+                        }
+                        ops.addAndGet(count);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        return MEASURE_MILLIS * 1000000.0 / Math.max(1, ops.get());
+    }
+    
+    private static void report(String name, double nanosPerOp) {
+        StringBuffer line = new StringBuffer(name);
+        while (line.length() < 40) {
+            line.append(' ');
+        }
+        line.append(Math.round(nanosPerOp));
+        System.out.println(line);
+    }
+    
+    private static void reportFailure(String name, Exception e) {
+        StringBuffer line = new StringBuffer(name);
+        while (line.length() < 40) {
+            line.append(' ');
+        }
+        line.append("FAILED: ").append(e);
+        System.out.println(line);
+        e.printStackTrace();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * DeclaredModules.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.SourceModel;
+import org.openquark.cal.compiler.SourceModelTraverser;
+import org.openquark.cal.compiler.SourceModel.Import;
+import org.openquark.cal.compiler.SourceModel.ModuleDefn;
+
+/**
+ * Remembers the text and imports of the modules declared through 
+ * {@link RunQuark#declareModule(String, String, int, int, boolean, boolean)}.
+ * <p>
+ * The text lets an unchanged module be recognized before it is parsed, so 
+ * that redeclaring it costs a hash lookup.  The imports tell which 
+ * declared modules depend on a module that changes, so that only the 
+ * expressions compiled in those modules are discarded.
+ * <p>
+ * Lookups do not lock.  Updates must be made while holding the compile lock.
+ */
+final class DeclaredModules {
+
+    /** the module declared by each module text that is currently loaded */
+    private final Map<String, ModuleName> modulesByText = 
+        new ConcurrentHashMap<String, ModuleName>();
+    
+    /** the text of each declared module */
+    private final Map<ModuleName, String> textsByModule = 
+        new ConcurrentHashMap<ModuleName, String>();
+    
+    /** the modules imported by each declared module */
+    private final Map<ModuleName, Set<ModuleName>> importsByModule = 
+        new ConcurrentHashMap<ModuleName, Set<ModuleName>>();
+    
+    /**
+     * @param moduleText
+     * @return the name of the module if this exact text is what was last 
+     * declared for it, or null if the text is new
+     */
+    ModuleName lookup(String moduleText) {
+        ModuleName moduleName = modulesByText.get(moduleText);
+        if (moduleName != null && moduleText.equals(textsByModule.get(moduleName))) {
+            return moduleName;
+        }
+        return null;
+    }
+    
+    /**
+     * Records a module that was compiled successfully
+     * 
+     * @param moduleText
+     * @param defn the parsed module text
+     */
+    void declared(String moduleText, ModuleDefn defn) {
+        ModuleName moduleName = defn.getModuleName();
+        forget(moduleName);
+        modulesByText.put(moduleText, moduleName);
+        textsByModule.put(moduleName, moduleText);
+        importsByModule.put(moduleName, importsOf(defn));
+    }
+    
+    /**
+     * Forgets the text of a module that was replaced by something that could 
+     * not be recorded, so that the next declaration is compiled again.  The 
+     * imports are kept, since dependents may still need to be found.
+     * 
+     * @param moduleName
+     */
+    void forget(ModuleName moduleName) {
+        String oldText = textsByModule.remove(moduleName);
+        if (oldText != null) {
+            modulesByText.remove(oldText);
+        }
+    }
+    
+    /**
+     * @param moduleName a module that has changed
+     * @return the module and all declared modules that import it, directly or 
+     * indirectly
+     */
+    Set<ModuleName> dependents(ModuleName moduleName) {
+        Set<ModuleName> dependents = new HashSet<ModuleName>();
+        LinkedList<ModuleName> toVisit = new LinkedList<ModuleName>();
+        dependents.add(moduleName);
+        toVisit.add(moduleName);
+        while (!toVisit.isEmpty()) {
+            ModuleName changed = toVisit.removeFirst();
+            for (final Map.Entry<ModuleName, Set<ModuleName>> entry : importsByModule.entrySet()) {
+                if (entry.getValue().contains(changed) && dependents.add(entry.getKey())) {
+                    toVisit.add(entry.getKey());
+                }
+            }
+        }
+        return dependents;
+    }
+    
+    private static Set<ModuleName> importsOf(ModuleDefn defn) {
+        final Set<ModuleName> imports = new HashSet<ModuleName>();
+        defn.accept(new SourceModelTraverser<Object, Object>() {
+            @Override
+            public Object visit_Import(Import importStmt, Object arg) {
+                imports.add(SourceModel.Name.Module.toModuleName(
+                        importStmt.getImportedModuleName()));
+                return null;
+            }
+        }, null);
+        return imports;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * Diagnostics.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openquark.cal.compiler.CompilerMessage;
+import org.openquark.cal.compiler.CompilerMessageLogger;
+import org.openquark.cal.compiler.CompilerMessage.Severity;
+
+/**
+ * Routes the compiler messages and evaluation failures of embedded CAL to
+ * a {@link DiagnosticsSink}.
+ * <p>
+ * Messages below the minimum severity are dropped, as are messages beyond
+ * the rate limit.  Every message is counted, whether or not it is dropped.
+ * <p>
+ * The default sink prints to STDOUT and STDERR from a background thread, 
+ * so that threads that compile or evaluate never wait for the console.  If 
+ * the console falls behind, messages are dropped rather than queued without
+ * bound.  Messages still queued when the JVM exits are printed by a 
+ * shutdown hook.
+ * <p>
+ * Compiler messages are reported once, when an expression or module is 
+ * compiled.  Evaluating an expression that is already compiled does not 
+ * report its messages again.
+ */
+public final class Diagnostics {
+
+    /** the default maximum number of messages reported per second */
+    public static final int DEFAULT_RATE_LIMIT = 100;
+    
+    private static final long ONE_SECOND_NANOS = 1000000000L;
+    
+    private static volatile DiagnosticsSink sink = new ConsoleSink();
+    
+    private static volatile Severity minSeverity = Severity.INFO;
+    
+    private static volatile int rateLimit = DEFAULT_RATE_LIMIT;
+    
+    /** the start of the current one second rate limiting window */
+    private static final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    
+    /** the number of messages reported in the current window */
+    private static final AtomicInteger windowCount = new AtomicInteger();
+    
+    private static final AtomicLong infoCount = new AtomicLong();
+    private static final AtomicLong warningCount = new AtomicLong();
+    private static final AtomicLong errorCount = new AtomicLong();
+    private static final AtomicLong failureCount = new AtomicLong();
+    private static final AtomicLong droppedCount = new AtomicLong();
+    
+    private Diagnostics() {
+        // not instantiated
+    }
+    
+    /**
+     * @param newSink where messages are sent, or null to restore the default
+     * console sink.  The printer thread of a console sink that is replaced 
+     * is stopped once it has printed the messages already queued.
+     */
+    public static synchronized void setSink(DiagnosticsSink newSink) {
+        DiagnosticsSink oldSink = sink;
+        if (newSink == null) {
+            if (oldSink instanceof ConsoleSink) {
+                return;
+            }
+            newSink = new ConsoleSink();
+        }
+        sink = newSink;
+        if (oldSink instanceof ConsoleSink && oldSink != newSink) {
+            ((ConsoleSink) oldSink).stop();
+        }
+    }
+    
+    /**
+     * @param severity the least severe compiler message that is reported.  
+     * By default, all messages are reported.
+     */
+    public static void setMinimumSeverity(Severity severity) {
+        minSeverity = severity;
+    }
+    
+    /**
+     * @param messagesPerSecond the maximum number of messages and failures 
+     * reported per second, or 0 for no limit
+     */
+    public static void setRateLimit(int messagesPerSecond) {
+        if (messagesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limit must not be negative: " + messagesPerSecond);
+        }
+        rateLimit = messagesPerSecond;
+    }
+    
+    /**
+     * @param severity
+     * @return the number of compiler messages of the given severity, 
+     * including the ones that were not reported.  Fatal messages are counted
+     * as errors.
+     */
+    public static long getMessageCount(Severity severity) {
+        return counter(severity).get();
+    }
+    
+    /**
+     * @return the number of evaluation failures, including the ones that 
+     * were not reported
+     */
+    public static long getFailureCount() {
+        return failureCount.get();
+    }
+    
+    /**
+     * @return the number of messages and failures that were not reported 
+     * because of the rate limit or because the console fell behind
+     */
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
+    
+    /**
+     * Reports all of the messages in a logger
+     * @param messageLogger
+     */
+    public static void report(CompilerMessageLogger messageLogger) {
+        if (messageLogger.getNMessages() > 0) {
+            for (final CompilerMessage message : messageLogger.getCompilerMessages()) {
+                report(message);
+            }
+        }
+    }
+    
+    /**
+     * @param message a compiler message
+     */
+    public static void report(CompilerMessage message) {
+        Severity severity = message.getSeverity();
+        counter(severity).incrementAndGet();
+        if (severity.compareTo(minSeverity) >= 0 && acquirePermit()) {
+            sink.compilerMessage(message);
+        }
+    }
+    
+    /**
+     * @param description what was being done when the failure happened
+     * @param error the cause of the failure, or null
+     */
+    public static void reportFailure(String description, Throwable error) {
+        failureCount.incrementAndGet();
+        if (acquirePermit()) {
+            sink.failure(description, error);
+        }
+    }
+    
+    private static AtomicLong counter(Severity severity) {
+        if (severity.compareTo(Severity.ERROR) >= 0) {
+            return errorCount;
+        } else if (severity.compareTo(Severity.WARNING) >= 0) {
+            return warningCount;
+        } else {
+            return infoCount;
+        }
+    }
+    
+    /**
+     * @return true if another message may be reported in the current window
+     */
+    private static boolean acquirePermit() {
+        int limit = rateLimit;
+        if (limit == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= ONE_SECOND_NANOS && windowStart.compareAndSet(start, now)) {
+            windowCount.set(0);
+        }
+        if (windowCount.incrementAndGet() <= limit) {
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        return false;
+    }
+    
+    /**
+     * Prints messages from a background thread.  Errors and failures go to 
+     * STDERR and everything else goes to STDOUT.
+     */
+    private static final class ConsoleSink implements DiagnosticsSink, Runnable {
+        private static final int QUEUE_CAPACITY = 1024;
+        
+        private final BlockingQueue<Runnable> pending = 
+            new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY);
+        
+        private volatile Thread printer;
+        
+        /** prints the queued messages when the JVM exits, once printer is started */
+        private Thread exitDrain;
+        
+        /** set when the sink is replaced, after which nothing is queued */
+        private volatile boolean stopped = false;
+        
+        public void compilerMessage(final CompilerMessage message) {
+            enqueue(new Runnable() {
+                public void run() {
+                    if (message.getSeverity().compareTo(Severity.ERROR) >= 0) {
+                        System.err.println(message.getMessage());
+                    } else {
+                        System.out.println(message.getMessage());
+                    }
+                }
+            });
+        }
+        
+        public void failure(final String description, final Throwable error) {
+            enqueue(new Runnable() {
+                public void run() {
+                    System.err.println(description);
+                    if (error != null) {
+                        error.printStackTrace();
+                    }
+                }
+            });
+        }
+        
+        private void enqueue(Runnable print) {
+            if (stopped) {
+                // reported by a thread that read the sink before it was replaced
+                print(print);
+                return;
+            }
+            if (!pending.offer(print)) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            if (stopped) {
+                // the printer may have finished before the message was queued
+                drain();
+                return;
+            }
+            if (printer == null) {
+                synchronized (this) {
+                    if (printer == null && !stopped) {
+                        // the printer is a daemon, so it does not keep the JVM 
+                        // alive to print what is left in the queue
+                        exitDrain = new Thread("Embedded CAL diagnostics drain") {
+                            @Override
+                            public void run() {
+                                drain();
+                            }
+                        };
+                        try {
+                            Runtime.getRuntime().addShutdownHook(exitDrain);
+                        } catch (IllegalStateException e) {
+                            // the JVM is already exiting
+                            exitDrain = null;
+                        } catch (SecurityException e) {
+                            exitDrain = null;
+                        }
+                        Thread thread = new AsyncScheduler.DaemonThreadFactory(
+                                "Embedded CAL diagnostics ").newThread(this);
+                        thread.start();
+                        printer = thread;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Stops the printer thread after it prints the messages that are 
+         * already queued
+         */
+        synchronized void stop() {
+            stopped = true;
+            if (printer != null) {
+                printer.interrupt();
+            }
+            if (exitDrain != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(exitDrain);
+                } catch (IllegalStateException e) {
+                    // the JVM is exiting and the hook is draining the queue
+                }
+                exitDrain = null;
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                try {
+                    print(pending.take());
+                } catch (InterruptedException e) {
+                    drain();
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Prints the queued messages on the calling thread
+         */
+        private void drain() {
+            for (Runnable print = pending.poll(); print != null; print = pending.poll()) {
+                print(print);
+            }
+        }
+        
+        /**
+         * @param print prints a message, on the calling thread
+         */
+        private static void print(Runnable print) {
+            try {
+                print.run();
+            } catch (RuntimeException e) {
+                // a message that cannot be printed must not stop the printer
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * EntryPointCache.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.io.EntryPoint;
+import org.openquark.cal.compiler.io.InputPolicy;
+import org.openquark.cal.compiler.io.OutputPolicy;
+
+/**
+ * A bounded cache of compiled entry points for embedded expressions.
+ * <p>
+ * Lookups do not lock, so that a hot expression costs only a hash lookup
+ * before it is executed. When the cache is full, the least recently used
+ * entry is evicted. Evictions only happen on a miss, so the linear scan this
+ * requires is dwarfed by the cost of the compile that caused it.
+ * <p>
+ * Each entry point runs an adjunct function compiled into its module. The 
+ * name of the function of an entry that has been removed is reused by the 
+ * next expression compiled in that module, so that the module does not 
+ * grow without bound.  Callers acquire an entry while they run its entry 
+ * point, and the name is only reused once no caller is running it.
+ */
+final class EntryPointCache {
+
+    /** the default maximum number of entry points that are kept */
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /**
+     * Identifies a compiled expression. Two keys are equal if the same
+     * expression text is compiled in the same module with the same variables,
+     * input policies, and output policy.
+     */
+    static final class Key {
+        private final ModuleName moduleName;
+        private final String exprText;
+        private final String[] varNames;
+        private final String[] policyKeys;
+        private final String outputPolicyKey;
+        private final int hash;
+
+        Key(ModuleName moduleName, String exprText, String[] varNames,
+                String[] policyKeys, String outputPolicyKey) {
+            this.moduleName = moduleName;
+            this.exprText = exprText;
+            this.varNames = varNames;
+            this.policyKeys = policyKeys;
+            this.outputPolicyKey = outputPolicyKey;
+
+            int h = moduleName.hashCode();
+            h = 31 * h + exprText.hashCode();
+            h = 31 * h + Arrays.hashCode(varNames);
+            h = 31 * h + Arrays.hashCode(policyKeys);
+            h = 31 * h + outputPolicyKey.hashCode();
+            this.hash = h;
+        }
+
+        ModuleName getModuleName() {
+            return moduleName;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash
+                && exprText.equals(other.exprText)
+                && moduleName.equals(other.moduleName)
+                && outputPolicyKey.equals(other.outputPolicyKey)
+                && Arrays.equals(varNames, other.varNames)
+                && Arrays.equals(policyKeys, other.policyKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A cached entry point along with the measurements of its expression and
+     * the last time it was used
+     */
+    final class Entry {
+        final EntryPoint entryPoint;
+        
+        private final ModuleName moduleName;
+        
+        /** the unqualified name of the adjunct function that entryPoint runs */
+        private final String functionName;
+        
+        /** 
+         * the measurements of the expression, or null if measuring was 
+         * turned off when it was compiled
+         */
+        volatile Metrics.ExpressionMetrics metrics;
+        
+        volatile long lastUsed;
+        
+        /** the number of callers running entryPoint.  Guarded by this */
+        private int users = 0;
+        
+        /** true once the entry is no longer in the cache */
+        private volatile boolean removed = false;
+
+        Entry(ModuleName moduleName, String functionName, EntryPoint entryPoint, 
+                Metrics.ExpressionMetrics metrics, long lastUsed) {
+            this.moduleName = moduleName;
+            this.functionName = functionName;
+            this.entryPoint = entryPoint;
+            this.metrics = metrics;
+            this.lastUsed = lastUsed;
+        }
+        
+        /**
+         * Keeps the name of the function from being reused until 
+         * {@link #release()} is called.  
+         * 
+         * @return false if the entry has been removed from the cache, in 
+         * which case the entry point must not be run
+         */
+        synchronized boolean acquire() {
+            if (removed) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+        
+        /**
+         * ends a call to {@link #acquire()} that returned true
+         */
+        synchronized void release() {
+            users--;
+            if (removed && users == 0) {
+                freeName(moduleName, functionName);
+            }
+        }
+        
+        /**
+         * @return true if the entry has been removed from the cache
+         */
+        boolean isRemoved() {
+            return removed;
+        }
+        
+        private synchronized void remove() {
+            if (removed) {
+                return;
+            }
+            removed = true;
+            if (users == 0) {
+                freeName(moduleName, functionName);
+            }
+        }
+    }
+
+    /** the maximum number of remembered input policy keys */
+    private static final int MAX_POLICY_KEYS = 1024;
+    
+    /** remembers the keys of input policies, which are costly to compute */
+    private static final Map<InputPolicy, String> inputPolicyKeys = 
+        new ConcurrentHashMap<InputPolicy, String>();
+    
+    /** remembers the keys of output policies, which are costly to compute */
+    private static final Map<OutputPolicy, String> outputPolicyKeys = 
+        new ConcurrentHashMap<OutputPolicy, String>();
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    
+    /** the function names that can be reused, by module */
+    private final ConcurrentMap<ModuleName, Queue<String>> freeNames = 
+        new ConcurrentHashMap<ModuleName, Queue<String>>();
+
+    /** a logical clock used to find the least recently used entry */
+    private final AtomicLong clock = new AtomicLong();
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * @param key
+     * @return the cached entry for key, or <code>null</code> if there is none
+     */
+    Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsed = clock.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Adds an entry point to the cache, evicting the least recently used
+     * entries if the cache is full.
+     * 
+     * @param key
+     * @param functionName the unqualified name of the adjunct function 
+     * that the entry point runs
+     * @param entryPoint
+     * @param metrics the measurements of the expression, or null
+     * @return the new entry
+     */
+    Entry put(Key key, String functionName, EntryPoint entryPoint, 
+            Metrics.ExpressionMetrics metrics) {
+        Entry entry = new Entry(key.getModuleName(), functionName, entryPoint, 
+                metrics, clock.incrementAndGet());
+        Entry replaced = entries.put(key, entry);
+        if (replaced != null) {
+            replaced.remove();
+        }
+        while (entries.size() > maxEntries) {
+            evictOldest();
+        }
+        return entry;
+    }
+    
+    /**
+     * @param moduleName
+     * @return the name of an adjunct function in the module that no entry 
+     * uses any more, or null if there is none.  The caller must compile 
+     * the new adjunct under the name, replacing the old one.
+     */
+    String takeFreeName(ModuleName moduleName) {
+        Queue<String> names = freeNames.get(moduleName);
+        return names == null ? null : names.poll();
+    }
+    
+    /**
+     * makes the name of an adjunct function available for reuse
+     * @param moduleName the module the function is in
+     * @param functionName the unqualified name of the function
+     */
+    void freeName(ModuleName moduleName, String functionName) {
+        Queue<String> names = freeNames.get(moduleName);
+        if (names == null) {
+            names = new ConcurrentLinkedQueue<String>();
+            Queue<String> existing = freeNames.putIfAbsent(moduleName, names);
+            if (existing != null) {
+                names = existing;
+            }
+        }
+        names.offer(functionName);
+    }
+
+    /**
+     * Removes all entry points that were compiled in the given module. This must
+     * be called whenever the module is replaced.
+     * 
+     * @param moduleName
+     */
+    void invalidateModule(ModuleName moduleName) {
+        for (Iterator<Map.Entry<Key, Entry>> entryIter = entries.entrySet().iterator(); 
+                entryIter.hasNext(); ) {
+            Map.Entry<Key, Entry> mapEntry = entryIter.next();
+            if (mapEntry.getKey().getModuleName().equals(moduleName)) {
+                entryIter.remove();
+                mapEntry.getValue().remove();
+            }
+        }
+    }
+
+    void clear() {
+        for (Iterator<Entry> entryIter = entries.values().iterator(); entryIter.hasNext(); ) {
+            Entry entry = entryIter.next();
+            entryIter.remove();
+            entry.remove();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        while (entries.size() > maxEntries) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        Key oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+        for (final Map.Entry<Key, Entry> mapEntry : entries.entrySet()) {
+            long lastUsed = mapEntry.getValue().lastUsed;
+            if (lastUsed < oldest) {
+                oldest = lastUsed;
+                oldestKey = mapEntry.getKey();
+            }
+        }
+        if (oldestKey != null) {
+            Entry evicted = entries.remove(oldestKey);
+            if (evicted != null) {
+                evicted.remove();
+            }
+        }
+    }
+
+    /**
+     * @param policy
+     * @return a string that identifies the marshaling performed by the policy
+     */
+    static String policyKey(InputPolicy policy) {
+        String key = inputPolicyKeys.get(policy);
+        if (key == null) {
+            key = policy.getNArguments() + ":" + policy.getMarshaler().toSourceText();
+            
+            // inferred policies are shared, so this stays small unless
+            // clients create their own policies for each call
+            if (inputPolicyKeys.size() >= MAX_POLICY_KEYS) {
+                inputPolicyKeys.clear();
+            }
+            inputPolicyKeys.put(policy, key);
+        }
+        return key;
+    }
+
+    /**
+     * @param policy
+     * @return a string that identifies the marshaling performed by the policy
+     */
+    static String policyKey(OutputPolicy policy) {
+        String key = outputPolicyKeys.get(policy);
+        if (key == null) {
+            key = policy.getMarshaler().toSourceText();
+            
+            // the standard output policies are constants, so this stays 
+            // small unless clients create their own policies for each call
+            if (outputPolicyKeys.size() >= MAX_POLICY_KEYS) {
+                outputPolicyKeys.clear();
+            }
+            outputPolicyKeys.put(policy, key);
+        }
+        return key;
+    }
+}
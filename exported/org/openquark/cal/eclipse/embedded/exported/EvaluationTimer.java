@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * EvaluationTimer.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openquark.cal.machine.CALExecutor;
+
+/**
+ * Enforces the deadline of a single evaluation.  When the deadline passes 
+ * before {@link #finish()} is called, the executor is asked to quit, which 
+ * makes it abandon the evaluation at its next reduction step.
+ * <p>
+ * All timers share one daemon thread, which does nothing but request quits.
+ */
+final class EvaluationTimer implements Runnable {
+
+    private static final int RUNNING = 0;
+    private static final int FINISHED = 1;
+    private static final int QUIT = 2;
+    
+    /** cancelled timers stay queued until they are purged */
+    private static final int PURGE_INTERVAL = 4096;
+    
+    private static ScheduledThreadPoolExecutor watchdog;
+    private static final AtomicInteger cancelCount = new AtomicInteger();
+    
+    private final CALExecutor executor;
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private ScheduledFuture<?> future;
+    
+    private EvaluationTimer(CALExecutor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Starts the timer for an evaluation that is about to run
+     * 
+     * @param executor the executor that runs the evaluation
+     * @param timeoutNanos the time that the evaluation may take
+     * @return the timer, which must be finished when the evaluation ends
+     */
+    static EvaluationTimer start(CALExecutor executor, long timeoutNanos) {
+        EvaluationTimer timer = new EvaluationTimer(executor);
+        timer.future = getWatchdog().schedule(timer, timeoutNanos, TimeUnit.NANOSECONDS);
+        return timer;
+    }
+    
+    private static synchronized ScheduledThreadPoolExecutor getWatchdog() {
+        if (watchdog == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, 
+                    new AsyncScheduler.DaemonThreadFactory("Embedded CAL watchdog "));
+            // finished evaluations cancel their timers, so there is nothing to keep
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            watchdog = executor;
+        }
+        return watchdog;
+    }
+    
+    public void run() {
+        if (state.compareAndSet(RUNNING, QUIT)) {
+            executor.requestQuit();
+        }
+    }
+
+    /**
+     * Stops the timer.  May be called more than once.
+     * 
+     * @return true if the deadline passed first.  The executor has then been 
+     * asked to quit and must not be used again.
+     */
+    boolean finish() {
+        if (state.compareAndSet(RUNNING, FINISHED)) {
+            future.cancel(false);
+            if (cancelCount.incrementAndGet() % PURGE_INTERVAL == 0) {
+                getWatchdog().purge();
+            }
+        }
+        return state.get() == QUIT;
+    }
+}
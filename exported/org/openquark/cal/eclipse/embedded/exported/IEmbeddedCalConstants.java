@@ -71,5 +71,8 @@ public interface IEmbeddedCalConstants {
     
     public static final String EXPRESSION_EDITOR_NAME_START = "RunQuark.";
     public static final String MODULE_EDITOR_NAME = "RunQuark.declareModule";
+    
+    // the classpath resource listing the modules and expressions to compile at warm-up
+    public static final String PRECOMPILE_MANIFEST = "META-INF/embeddedCAL/precompile.properties";
 
 }
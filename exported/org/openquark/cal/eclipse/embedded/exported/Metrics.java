@@ -0,0 +1,589 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * Metrics.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Measures where the time goes when embedded expressions are evaluated.
+ * <p>
+ * Each expression is identified by a stable hash of its module and text, 
+ * so that its measurements can be matched up across runs and machines.  
+ * For each expression, the time spent in every {@link Phase} is kept in a 
+ * histogram with power of two buckets.  Cache hits and misses, 
+ * evaluations, errors, and timeouts are also counted.
+ * <p>
+ * The measurements are available through {@link #getExpressionMetrics(String)},
+ * over JMX as {@value #OBJECT_NAME}, and to any {@link MetricsRegistry} that 
+ * has been added.
+ * <p>
+ * Measuring is off by default, since timing every phase costs more than a 
+ * warm evaluation of a small expression.  It is turned on with 
+ * {@link #setEnabled(boolean)}, over JMX, or by setting the system property
+ * {@link #METRICS_PROPERTY} to "true".  The totals over all expressions are 
+ * summed when they are read, so that evaluations of different expressions 
+ * do not update the same counters.
+ */
+public final class Metrics {
+
+    /** the name under which the metrics are registered with the platform MBean server */
+    public static final String OBJECT_NAME = "org.openquark.cal.eclipse.embedded:type=Metrics";
+    
+    /** set to "true" to measure from the time that Metrics is loaded */
+    public static final String METRICS_PROPERTY = "org.openquark.cal.eclipse.embedded.metrics";
+    
+    /**
+     * The phases of compiling and evaluating an expression.  
+     */
+    public static enum Phase {
+        /** parsing the text of the expression.  only when compiling */
+        PARSE,
+        
+        /** splicing source model inputs into the expression.  only when compiling */
+        SPLICE,
+        
+        /** compiling the expression into an entry point.  only when compiling */
+        COMPILE,
+        
+        /** preparing the Java input values for the executor */
+        MARSHAL,
+        
+        /** 
+         * running the entry point.  This includes the marshaling that the 
+         * input and output policies do inside the executor, which cannot be
+         * timed separately 
+         */
+        EXEC
+    }
+    
+    /** the maximum number of expressions that are measured separately */
+    static final int MAX_EXPRESSIONS = 1024;
+    
+    /** the longest expression text kept for display */
+    private static final int MAX_TEXT_LENGTH = 80;
+    
+    private static volatile boolean enabled = enabledBySystemProperty();
+    
+    private static final ConcurrentMap<String, ExpressionMetrics> expressions = 
+        new ConcurrentHashMap<String, ExpressionMetrics>();
+    
+    /** measures all expressions once there are too many to measure separately */
+    private static final ExpressionMetrics others = 
+        new ExpressionMetrics("others", "", "");
+    
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+    
+    private static final List<MetricsRegistry> registries = 
+        new CopyOnWriteArrayList<MetricsRegistry>();
+    
+    static {
+        registerMBean();
+    }
+    
+    private Metrics() {
+        // not instantiated
+    }
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+    
+    private static boolean enabledBySystemProperty() {
+        try {
+            return Boolean.getBoolean(METRICS_PROPERTY);
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+    
+    public static void addRegistry(MetricsRegistry registry) {
+        registries.add(registry);
+    }
+    
+    public static void removeRegistry(MetricsRegistry registry) {
+        registries.remove(registry);
+    }
+    
+    /**
+     * @param moduleNameStr the module the expression is evaluated in, or 
+     * null for the default module
+     * @param exprText the text of the expression
+     * @return the stable identifier of the expression: a 64 bit FNV-1a hash 
+     * of its module name and text, in hexadecimal
+     */
+    public static String expressionId(String moduleNameStr, String exprText) {
+        if (moduleNameStr == null) {
+            moduleNameStr = IEmbeddedCalConstants.EMBEDDED_CAL_MODULE;
+        }
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, moduleNameStr);
+        hash = (hash ^ '\n') * 0x100000001b3L;
+        hash = fnv(hash, exprText);
+        
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+    
+    private static long fnv(long hash, String text) {
+        for (int cnt = 0; cnt < text.length(); cnt++) {
+            hash = (hash ^ text.charAt(cnt)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    /**
+     * @param expressionId
+     * @return the measurements of the expression, or null if it has not been
+     * measured
+     */
+    public static ExpressionMetrics getExpressionMetrics(String expressionId) {
+        return expressions.get(expressionId);
+    }
+    
+    /**
+     * @return the measurements of every expression measured separately
+     */
+    public static List<ExpressionMetrics> getAllExpressionMetrics() {
+        return new ArrayList<ExpressionMetrics>(expressions.values());
+    }
+    
+    /**
+     * @param moduleNameStr
+     * @param exprText
+     * @return the measurements of the expression, or null if measuring is 
+     * turned off
+     */
+    static ExpressionMetrics forExpression(String moduleNameStr, String exprText) {
+        if (!enabled) {
+            return null;
+        }
+        return forId(expressionId(moduleNameStr, exprText), moduleNameStr, exprText);
+    }
+    
+    /**
+     * @param expressionId the identifier of the expression, computed beforehand
+     * @param moduleNameStr
+     * @param exprText
+     * @return the measurements of the expression, or null if measuring is 
+     * turned off
+     */
+    static ExpressionMetrics forId(String expressionId, String moduleNameStr, String exprText) {
+        if (!enabled) {
+            return null;
+        }
+        ExpressionMetrics metrics = expressions.get(expressionId);
+        if (metrics == null) {
+            if (expressions.size() >= MAX_EXPRESSIONS) {
+                return others;
+            }
+            metrics = new ExpressionMetrics(expressionId, 
+                    moduleNameStr == null ? IEmbeddedCalConstants.EMBEDDED_CAL_MODULE : moduleNameStr, 
+                    exprText.length() > MAX_TEXT_LENGTH ? 
+                            exprText.substring(0, MAX_TEXT_LENGTH) + "..." : exprText);
+            ExpressionMetrics existing = expressions.putIfAbsent(expressionId, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+    
+    /**
+     * @param hit true if the compiled expression was found in the cache
+     */
+    static void cacheLookup(boolean hit) {
+        if (!enabled) {
+            return;
+        }
+        (hit ? cacheHits : cacheMisses).incrementAndGet();
+        for (final MetricsRegistry registry : registries) {
+            registry.cacheLookup(hit);
+        }
+    }
+    
+    /**
+     * discards all measurements.  The expressions stay registered, since 
+     * cached entry points keep their measurements.
+     */
+    public static void reset() {
+        for (final ExpressionMetrics metrics : expressions.values()) {
+            metrics.reset();
+        }
+        others.reset();
+        cacheHits.set(0);
+        cacheMisses.set(0);
+    }
+    
+    /**
+     * @return the expressions measured separately, and the others
+     */
+    private static List<ExpressionMetrics> allMeasured() {
+        List<ExpressionMetrics> all = new ArrayList<ExpressionMetrics>(expressions.values());
+        all.add(others);
+        return all;
+    }
+    
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new JmxView(), MetricsMBean.class), 
+                    new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by another copy of this class
+        } catch (JMException e) {
+            Diagnostics.reportFailure("Could not register the embedded CAL metrics with JMX", e);
+        } catch (SecurityException e) {
+            // JMX is not available to us
+        }
+    }
+    
+    /**
+     * The measurements of one expression
+     */
+    public static final class ExpressionMetrics {
+        private final String id;
+        private final String moduleName;
+        private final String text;
+        private final Histogram[] phases = Histogram.forPhases();
+        private final AtomicLong evaluationCount = new AtomicLong();
+        private final AtomicLong errorCount = new AtomicLong();
+        private final AtomicLong timeoutCount = new AtomicLong();
+        
+        ExpressionMetrics(String id, String moduleName, String text) {
+            this.id = id;
+            this.moduleName = moduleName;
+            this.text = text;
+        }
+        
+        /**
+         * @param phase
+         * @param nanos the time taken by the phase
+         */
+        void record(Phase phase, long nanos) {
+            phases[phase.ordinal()].record(nanos);
+            if (phase == Phase.EXEC) {
+                evaluationCount.incrementAndGet();
+            }
+            for (final MetricsRegistry registry : registries) {
+                registry.phaseTimed(id, phase, nanos);
+            }
+        }
+        
+        /**
+         * @param timedOut true if the evaluation was terminated by its timeout
+         */
+        void failed(boolean timedOut) {
+            errorCount.incrementAndGet();
+            if (timedOut) {
+                timeoutCount.incrementAndGet();
+            }
+            for (final MetricsRegistry registry : registries) {
+                registry.evaluationFailed(id, timedOut);
+            }
+        }
+        
+        private void reset() {
+            for (final Histogram histogram : phases) {
+                histogram.reset();
+            }
+            evaluationCount.set(0);
+            errorCount.set(0);
+            timeoutCount.set(0);
+        }
+        
+        public String getId() {
+            return id;
+        }
+        
+        public String getModuleName() {
+            return moduleName;
+        }
+        
+        /**
+         * @return the text of the expression, abbreviated if it is long
+         */
+        public String getText() {
+            return text;
+        }
+        
+        public long getEvaluationCount() {
+            return evaluationCount.get();
+        }
+        
+        public long getErrorCount() {
+            return errorCount.get();
+        }
+        
+        public long getTimeoutCount() {
+            return timeoutCount.get();
+        }
+        
+        /**
+         * @param phase
+         * @return the number of times the phase was timed
+         */
+        public long getCount(Phase phase) {
+            return phases[phase.ordinal()].getCount();
+        }
+        
+        /**
+         * @param phase
+         * @return the total time spent in the phase, in nanoseconds
+         */
+        public long getTotalNanos(Phase phase) {
+            return phases[phase.ordinal()].getTotal();
+        }
+        
+        /**
+         * @param phase
+         * @param percentile between 0 and 100
+         * @return an upper bound of the given percentile of the phase's 
+         * times, in nanoseconds.  The bound is at most twice the true value.
+         */
+        public long getPercentileNanos(Phase phase, double percentile) {
+            return phases[phase.ordinal()].percentile(percentile);
+        }
+        
+        String summary() {
+            StringBuffer sb = new StringBuffer();
+            sb.append(id).append(' ').append(moduleName);
+            sb.append(" evaluations=").append(getEvaluationCount());
+            sb.append(" errors=").append(getErrorCount());
+            for (final Phase phase : Phase.values()) {
+                sb.append(' ').append(phase.name().toLowerCase()).append("Mean=");
+                sb.append(phases[phase.ordinal()].mean()).append("ns");
+            }
+            sb.append(" text=").append(text);
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * Counts times in buckets whose bounds are powers of two nanoseconds
+     */
+    static final class Histogram {
+        private static final int NUM_BUCKETS = 48;
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        
+        static Histogram[] forPhases() {
+            Histogram[] histograms = new Histogram[Phase.values().length];
+            for (int cnt = 0; cnt < histograms.length; cnt++) {
+                histograms[cnt] = new Histogram();
+            }
+            return histograms;
+        }
+        
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            // bucket n holds times below 2^n
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos), NUM_BUCKETS - 1);
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+        }
+        
+        long getCount() {
+            return count.get();
+        }
+        
+        /**
+         * adds the times recorded in this histogram to another one
+         * @param sum
+         */
+        void addTo(Histogram sum) {
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                sum.buckets.addAndGet(bucket, buckets.get(bucket));
+            }
+            sum.count.addAndGet(count.get());
+            sum.total.addAndGet(total.get());
+        }
+        
+        long getTotal() {
+            return total.get();
+        }
+        
+        long mean() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / n;
+        }
+        
+        long percentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile / 100.0);
+            long seen = 0;
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return 1L << bucket;
+                }
+            }
+            return 1L << (NUM_BUCKETS - 1);
+        }
+        
+        void reset() {
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                buckets.set(bucket, 0);
+            }
+            count.set(0);
+            total.set(0);
+        }
+    }
+    
+    /**
+     * Exposes the metrics over JMX
+     */
+    private static final class JmxView implements MetricsMBean {
+        public boolean isEnabled() {
+            return Metrics.isEnabled();
+        }
+
+        public void setEnabled(boolean enable) {
+            Metrics.setEnabled(enable);
+        }
+
+        public long getCacheHits() {
+            return cacheHits.get();
+        }
+
+        public long getCacheMisses() {
+            return cacheMisses.get();
+        }
+
+        public double getCacheHitRate() {
+            long hits = cacheHits.get();
+            long lookups = hits + cacheMisses.get();
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        public int getCachedExpressionCount() {
+            return RunQuark.getCachedEntryPointCount();
+        }
+
+        public int getActiveExecutorCount() {
+            return RunQuark.getActiveExecutorCount();
+        }
+
+        public long getEvaluationCount() {
+            long sum = 0;
+            for (final ExpressionMetrics metrics : allMeasured()) {
+                sum += metrics.getEvaluationCount();
+            }
+            return sum;
+        }
+
+        public long getErrorCount() {
+            long sum = 0;
+            for (final ExpressionMetrics metrics : allMeasured()) {
+                sum += metrics.getErrorCount();
+            }
+            return sum;
+        }
+
+        public long getTimeoutCount() {
+            long sum = 0;
+            for (final ExpressionMetrics metrics : allMeasured()) {
+                sum += metrics.getTimeoutCount();
+            }
+            return sum;
+        }
+
+        public long getCompileCount() {
+            long sum = 0;
+            for (final ExpressionMetrics metrics : allMeasured()) {
+                sum += metrics.getCount(Phase.COMPILE);
+            }
+            return sum;
+        }
+
+        public String[] getPhaseSummaries() {
+            Histogram[] phaseTotals = Histogram.forPhases();
+            for (final ExpressionMetrics metrics : allMeasured()) {
+                for (int cnt = 0; cnt < phaseTotals.length; cnt++) {
+                    metrics.phases[cnt].addTo(phaseTotals[cnt]);
+                }
+            }
+            Phase[] phases = Phase.values();
+            String[] summaries = new String[phases.length];
+            for (int cnt = 0; cnt < phases.length; cnt++) {
+                Histogram histogram = phaseTotals[cnt];
+                summaries[cnt] = phases[cnt].name().toLowerCase() + 
+                        " count=" + histogram.getCount() + 
+                        " mean=" + histogram.mean() + "ns" +
+                        " p99<" + histogram.percentile(99) + "ns";
+            }
+            return summaries;
+        }
+
+        public String[] getExpressionSummaries() {
+            List<String> summaries = new ArrayList<String>();
+            for (final ExpressionMetrics metrics : expressions.values()) {
+                summaries.add(metrics.summary());
+            }
+            if (others.getEvaluationCount() > 0) {
+                summaries.add(others.summary());
+            }
+            return summaries.toArray(new String[summaries.size()]);
+        }
+
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * MetricsMBean.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+/**
+ * The JMX view of {@link Metrics}.  It is registered with the platform 
+ * MBean server as {@value Metrics#OBJECT_NAME}.
+ */
+public interface MetricsMBean {
+    
+    boolean isEnabled();
+    
+    void setEnabled(boolean enabled);
+    
+    long getCacheHits();
+    
+    long getCacheMisses();
+    
+    /**
+     * @return the fraction of lookups that found a compiled expression
+     */
+    double getCacheHitRate();
+    
+    /**
+     * @return the number of compiled expressions currently cached
+     */
+    int getCachedExpressionCount();
+    
+    /**
+     * @return the number of CAL executors currently evaluating
+     */
+    int getActiveExecutorCount();
+    
+    long getEvaluationCount();
+    
+    long getErrorCount();
+    
+    long getTimeoutCount();
+    
+    long getCompileCount();
+    
+    /**
+     * @return one line for each phase, with its count, mean, and approximate
+     * 99th percentile, over all expressions
+     */
+    String[] getPhaseSummaries();
+    
+    /**
+     * @return one line for each expression, with its identifier, module, 
+     * number of evaluations, errors, and mean time in each phase
+     */
+    String[] getExpressionSummaries();
+    
+    /**
+     * discards all measurements
+     */
+    void reset();
+}
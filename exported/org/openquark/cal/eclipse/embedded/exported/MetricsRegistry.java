@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * MetricsRegistry.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+/**
+ * Receives the measurements taken by {@link Metrics}, so that they can be 
+ * forwarded to an external metrics library.  Register one with 
+ * {@link Metrics#addRegistry(MetricsRegistry)}.
+ * <p>
+ * Registries are called on the evaluating thread, so they must be thread 
+ * safe and should return quickly.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * @param expressionId the stable identifier of the expression
+     * @param phase the phase of evaluation that was timed
+     * @param nanos the time the phase took
+     */
+    void phaseTimed(String expressionId, Metrics.Phase phase, long nanos);
+    
+    /**
+     * @param hit true if a compiled expression was found in the cache
+     */
+    void cacheLookup(boolean hit);
+    
+    /**
+     * @param expressionId the stable identifier of the expression
+     * @param timedOut true if the evaluation was terminated by its timeout
+     */
+    void evaluationFailed(String expressionId, boolean timedOut);
+}
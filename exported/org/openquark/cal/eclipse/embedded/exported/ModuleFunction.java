@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ModuleFunction.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openquark.cal.compiler.io.EntryPoint;
+import org.openquark.cal.compiler.io.InputPolicy;
+import org.openquark.cal.compiler.io.OutputPolicy;
+import org.openquark.cal.runtime.CALExecutorException;
+
+/**
+ * A handle to a public function of a CAL module, with fixed input and 
+ * output policies.  Instances are created by 
+ * {@link RunQuark#prepareFunction(String, String, InputPolicy[], OutputPolicy)},
+ * usually from the static fields of a facade class generated from a module
+ * editor.
+ * <p>
+ * The function is called directly through an entry point for it.  No 
+ * expression is parsed, no adjunct is compiled and no input policies are
+ * inferred.  If a module is redeclared, the entry point is looked up again
+ * on the next invocation.
+ */
+public final class ModuleFunction {
+    
+    /**
+     * an entry point along with the module generation it was compiled in
+     */
+    private static final class Binding {
+        final EntryPoint entryPoint;
+        final int generation;
+        
+        Binding(EntryPoint entryPoint, int generation) {
+            this.entryPoint = entryPoint;
+            this.generation = generation;
+        }
+    }
+
+    private final String moduleNameStr;
+    
+    private final String functionName;
+    
+    private final InputPolicy[] policies;
+    
+    private final OutputPolicy outPolicy;
+    
+    /** the stable identifier of this function in {@link Metrics} */
+    private final String metricsId;
+    
+    private volatile Binding binding;
+    
+    ModuleFunction(String moduleNameStr, String functionName, 
+            InputPolicy[] policies, OutputPolicy outPolicy) {
+        for (final InputPolicy policy : policies) {
+            if (policy == null) {
+                throw new IllegalArgumentException("Input policies of " + 
+                        functionName + " must not be null");
+            }
+        }
+        this.moduleNameStr = moduleNameStr;
+        this.functionName = functionName;
+        this.policies = policies.clone();
+        this.outPolicy = outPolicy == null ? 
+                OutputPolicy.DEFAULT_OUTPUT_POLICY : outPolicy;
+        this.metricsId = Metrics.expressionId(moduleNameStr, functionName);
+    }
+    
+    /**
+     * Calls the function.  Any CAL error or timeout is printed to STDERR and
+     * <code>null</code> is returned.
+     * 
+     * @param args the arguments of the function
+     * @return the value of the function
+     */
+    public Object invoke(Object... args) {
+        try {
+            return invokeThrowing(args);
+        } catch (CALExecutorException e) {
+            RunQuark.reportFailure(e);
+            return null;
+        } catch (EvaluationTimeoutException e) {
+            RunQuark.reportFailure(e);
+            return null;
+        }
+    }
+    
+    /**
+     * Calls the function.
+     * 
+     * @param args the arguments of the function
+     * @return the value of the function
+     * @throws CALExecutorException in case of a CAL error
+     * @throws EvaluationTimeoutException if the default evaluation timeout 
+     * passes first
+     * @see RunQuark#setEvaluationTimeout(long, TimeUnit)
+     */
+    public Object invokeThrowing(Object... args) throws CALExecutorException {
+        if (args.length != policies.length) {
+            throw new IllegalArgumentException("Expecting " + policies.length + 
+                    " arguments, but found " + args.length);
+        }
+        
+        Binding current = binding;
+        if (current == null || current.generation != RunQuark.getModuleGeneration()) {
+            current = bind();
+        }
+        Metrics.ExpressionMetrics metrics = 
+            Metrics.forId(metricsId, moduleNameStr, functionName);
+        return RunQuark.exec(current.entryPoint, null, functionName, args, 
+                outPolicy == OutputPolicy.ITERATOR_OUTPUT_POLICY, 
+                RunQuark.getEvaluationTimeoutNanos(), metrics);
+    }
+    
+    /**
+     * @return the fully qualified name of the function
+     */
+    public String getName() {
+        return moduleNameStr + "." + functionName;
+    }
+    
+    /**
+     * Looks up the entry point of the function in the current generation 
+     * of the modules
+     * 
+     * @return the binding, whose entry point is <code>null</code> if the 
+     * function cannot be found
+     */
+    private Binding bind() {
+        // the generation is read first, so that a module declared while we 
+        // are looking up causes another look up
+        int generation = RunQuark.getModuleGeneration();
+        Binding current = binding;
+        if (current != null && current.generation == generation) {
+            return current;
+        }
+        
+        EntryPoint entryPoint = RunQuark.getFunctionEntryPoint(moduleNameStr, 
+                functionName, policies.clone(), outPolicy);
+        Binding newBinding = new Binding(entryPoint, generation);
+        
+        // keep failures unbound so that they are retried and reported
+        if (entryPoint != null) {
+            binding = newBinding;
+        }
+        return newBinding;
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * PreparedExpression.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openquark.cal.compiler.SourceModel.Expr;
+import org.openquark.cal.compiler.io.InputPolicy;
+import org.openquark.cal.compiler.io.OutputPolicy;
+import org.openquark.cal.eclipse.embedded.exported.RunQuark.InputTuple;
+import org.openquark.cal.runtime.CALExecutorException;
+
+/**
+ * A handle to an embedded expression that is compiled once and can then be
+ * invoked many times.  Instances are created by 
+ * {@link RunQuark#prepare(String, String[], InputPolicy[], OutputPolicy, String)}.
+ * <p>
+ * Invoking a prepared expression passes its arguments directly to the CAL 
+ * executor.  No input tuples are created and no input policies are inferred, 
+ * except for the policies that are inferred once, on the first invocation.
+ * If a module is redeclared, the expression is recompiled on its next 
+ * invocation.
+ * <p>
+ * Arguments that are source models are spliced into the expression, as they
+ * are by evaluateExpression.  An invocation with a source model argument 
+ * therefore compiles the expression it produces, and does not use the 
+ * prepared entry point.
+ * <p>
+ * Expressions prepared with the ITERATOR_OUTPUT_POLICY return a
+ * {@link ResultIterator}.
+ */
+public final class PreparedExpression {
+
+    /**
+     * a cached entry point along with the module generation it was compiled in
+     */
+    private static final class Binding {
+        /** the cache entry, or null if the expression does not compile */
+        final EntryPointCache.Entry entry;
+        final int generation;
+        
+        Binding(EntryPointCache.Entry entry, int generation) {
+            this.entry = entry;
+            this.generation = generation;
+        }
+        
+        /**
+         * @return true if the entry point must be compiled again: a module 
+         * was declared, or the cache dropped the entry, after which its 
+         * function may be replaced
+         */
+        boolean isStale() {
+            return generation != RunQuark.getModuleGeneration() || 
+                (entry != null && entry.isRemoved());
+        }
+    }
+    
+    private final String exprText;
+    
+    private final String[] varNames;
+    
+    /** the input policies.  null elements have not been inferred yet */
+    private final InputPolicy[] policies;
+    
+    /** the input policies that were given to prepare, with nulls for inference */
+    private final InputPolicy[] declaredPolicies;
+    
+    private final OutputPolicy outPolicy;
+    
+    private final String moduleNameStr;
+    
+    /** the stable identifier of this expression in {@link Metrics} */
+    private final String metricsId;
+    
+    private volatile Binding binding;
+    
+    PreparedExpression(String exprText, String[] varNames,
+            InputPolicy[] policies, OutputPolicy outPolicy, String moduleNameStr) {
+        
+        if (policies != null && policies.length != varNames.length) {
+            throw new IllegalArgumentException("Expecting " + varNames.length + 
+                    " input policies, but found " + policies.length);
+        }
+        this.exprText = exprText;
+        this.varNames = varNames.clone();
+        this.policies = policies == null ? 
+                new InputPolicy[varNames.length] : policies.clone();
+        this.declaredPolicies = this.policies.clone();
+        this.outPolicy = outPolicy;
+        this.moduleNameStr = moduleNameStr;
+        this.metricsId = Metrics.expressionId(moduleNameStr, exprText);
+    }
+    
+    /**
+     * Evaluates the expression.  Any CAL error or timeout is printed to 
+     * STDERR and <code>null</code> is returned.
+     * 
+     * @param args the values of the variables, in the order that their 
+     * names were passed to prepare
+     * @return the value of the CAL expression
+     */
+    public Object invoke(Object... args) {
+        try {
+            return invokeThrowing(args);
+        } catch (CALExecutorException e) {
+            RunQuark.reportFailure(e);
+            return null;
+        } catch (EvaluationTimeoutException e) {
+            RunQuark.reportFailure(e);
+            return null;
+        }
+    }
+    
+    /**
+     * Evaluates the expression.
+     * 
+     * @param args the values of the variables, in the order that their 
+     * names were passed to prepare
+     * @return the value of the CAL expression
+     * @throws CALExecutorException in case of a CAL error
+     * @throws EvaluationTimeoutException if the default evaluation timeout 
+     * passes first
+     * @see RunQuark#setEvaluationTimeout(long, TimeUnit)
+     */
+    public Object invokeThrowing(Object... args) throws CALExecutorException {
+        return invokeWithTimeout(RunQuark.getEvaluationTimeoutNanos(), args);
+    }
+    
+    /**
+     * Evaluates the expression, giving up if it does not finish in time.
+     * 
+     * @param timeout the time that the evaluation may take, or 0 for no limit
+     * @param unit the unit of timeout
+     * @param args the values of the variables, in the order that their 
+     * names were passed to prepare
+     * @return the value of the CAL expression
+     * @throws CALExecutorException in case of a CAL error
+     * @throws EvaluationTimeoutException if the timeout passes first
+     */
+    public Object invokeWithTimeout(long timeout, TimeUnit unit, Object... args) 
+            throws CALExecutorException {
+        return invokeWithTimeout(unit.toNanos(timeout), args);
+    }
+    
+    private Object invokeWithTimeout(long timeoutNanos, Object[] args) 
+            throws CALExecutorException {
+        if (args.length != varNames.length) {
+            throw new IllegalArgumentException("Expecting " + varNames.length + 
+                    " arguments, but found " + args.length);
+        }
+        for (final Object arg : args) {
+            if (arg instanceof Expr) {
+                return evaluateSpliced(timeoutNanos, args);
+            }
+        }
+        
+        Binding current = binding;
+        while (true) {
+            if (current == null || current.isStale()) {
+                current = bind(args);
+            }
+            if (current.entry == null || current.entry.acquire()) {
+                break;
+            }
+            // removed from the cache since it was bound
+            current = null;
+        }
+        Metrics.ExpressionMetrics metrics = Metrics.forId(metricsId, moduleNameStr, exprText);
+        return RunQuark.exec(current.entry == null ? null : current.entry.entryPoint, 
+                current.entry, exprText, args, 
+                outPolicy == OutputPolicy.ITERATOR_OUTPUT_POLICY, timeoutNanos, metrics);
+    }
+    
+    /**
+     * Evaluates the expression through evaluateExpression, so that the 
+     * source model arguments are spliced into it rather than marshaled.
+     * 
+     * @param timeoutNanos
+     * @param args
+     * @return the value of the CAL expression
+     * @throws CALExecutorException
+     */
+    private Object evaluateSpliced(long timeoutNanos, Object[] args) 
+            throws CALExecutorException {
+        InputTuple[] inputs = new InputTuple[args.length];
+        for (int cnt = 0; cnt < args.length; cnt++) {
+            inputs[cnt] = new InputTuple(args[cnt], declaredPolicies[cnt], varNames[cnt]);
+        }
+        return RunQuark.evaluate(exprText, inputs, outPolicy, moduleNameStr, timeoutNanos);
+    }
+    
+    /**
+     * Starts evaluating the expression on a scheduler thread and returns 
+     * immediately.
+     * 
+     * @param args the values of the variables, in the order that their 
+     * names were passed to prepare
+     * @return the pending value of the CAL expression
+     * @see RunQuark#evaluateExpressionAsync(String, org.openquark.cal.eclipse.embedded.exported.RunQuark.InputTuple[], OutputPolicy, String)
+     */
+    public Future<Object> invokeAsync(final Object... args) {
+        return AsyncScheduler.get().submit(new Callable<Object>() {
+            public Object call() throws CALExecutorException {
+                return invokeThrowing(args);
+            }
+        });
+    }
+
+    /**
+     * Evaluates the expression once for each row of arguments, on the 
+     * calling thread.
+     * 
+     * @param rows the arguments of each evaluation
+     * @return the results, in the same order as the rows
+     * @throws CALExecutorException in case of a CAL error
+     * @see #invokeBatch(List, ExecutorService)
+     */
+    public List<Object> invokeBatch(List<Object[]> rows) throws CALExecutorException {
+        return invokeBatch(rows, null);
+    }
+    
+    /**
+     * Evaluates the expression once for each row of arguments.  The 
+     * expression is compiled only once.  
+     * <p>
+     * If an executor service is given, the rows are split into contiguous 
+     * partitions that are evaluated in parallel.  This only happens when 
+     * RunQuark is not in the {@link RunQuark.ConcurrencyMode#SHARED} mode,
+     * since a shared CAL executor cannot run on several threads.  Otherwise, 
+     * the rows are evaluated on the calling thread.
+     * 
+     * @param rows the arguments of each evaluation
+     * @param parallelExecutor the threads to evaluate the rows on, or null to 
+     * evaluate them on the calling thread
+     * @return the results, in the same order as the rows
+     * @throws CALExecutorException in case of a CAL error.  The first error
+     * that is found is thrown.
+     */
+    public List<Object> invokeBatch(final List<Object[]> rows, 
+            ExecutorService parallelExecutor) throws CALExecutorException {
+        
+        final Object[] results = new Object[rows.size()];
+        if (results.length == 0) {
+            return Arrays.asList(results);
+        }
+        
+        // the first row also compiles the expression, so that the 
+        // partitions do not wait on each other to do it
+        results[0] = invokeThrowing(rows.get(0));
+        
+        if (parallelExecutor == null || results.length < 3 || 
+                RunQuark.getConcurrencyMode() == RunQuark.ConcurrencyMode.SHARED) {
+            for (int cnt = 1; cnt < results.length; cnt++) {
+                results[cnt] = invokeThrowing(rows.get(cnt));
+            }
+            return Arrays.asList(results);
+        }
+        
+        int remaining = results.length - 1;
+        int numPartitions = Math.min(remaining, 
+                4 * Runtime.getRuntime().availableProcessors());
+        List<Future<Void>> partitions = new ArrayList<Future<Void>>(numPartitions);
+        for (int cnt = 0; cnt < numPartitions; cnt++) {
+            final int start = 1 + (int) ((long) cnt * remaining / numPartitions);
+            final int end = 1 + (int) ((long) (cnt + 1) * remaining / numPartitions);
+            partitions.add(parallelExecutor.submit(new Callable<Void>() {
+                public Void call() throws CALExecutorException {
+                    for (int row = start; row < end; row++) {
+                        results[row] = invokeThrowing(rows.get(row));
+                    }
+                    return null;
+                }
+            }));
+        }
+        
+        try {
+            for (final Future<Void> partition : partitions) {
+                partition.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while evaluating " + exprText);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CALExecutorException) {
+                throw (CALExecutorException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException(cause.toString());
+            }
+        } finally {
+            // stop any partitions that are still running after a failure
+            for (final Future<Void> partition : partitions) {
+                partition.cancel(true);
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Evaluates the expression once for each row of a set of columns.  The
+     * i'th argument of the n'th evaluation is <code>columns[i][n]</code>.
+     * 
+     * @param columns the values of each variable, in the order that their 
+     * names were passed to prepare.  All columns must have the same length
+     * @param parallelExecutor the threads to evaluate the rows on, or null to 
+     * evaluate them on the calling thread
+     * @return the results, in row order
+     * @throws CALExecutorException in case of a CAL error
+     * @see #invokeBatch(List, ExecutorService)
+     */
+    public List<Object> invokeColumns(final Object[][] columns, 
+            ExecutorService parallelExecutor) throws CALExecutorException {
+        if (columns.length != varNames.length) {
+            throw new IllegalArgumentException("Expecting " + varNames.length + 
+                    " columns, but found " + columns.length);
+        }
+        
+        final int numRows = columns.length == 0 ? 0 : columns[0].length;
+        for (final Object[] column : columns) {
+            if (column.length != numRows) {
+                throw new IllegalArgumentException("All columns must have " + 
+                        numRows + " rows");
+            }
+        }
+        
+        // rows are assembled as they are evaluated
+        List<Object[]> rows = new AbstractList<Object[]>() {
+            @Override
+            public Object[] get(int row) {
+                Object[] args = new Object[columns.length];
+                for (int cnt = 0; cnt < columns.length; cnt++) {
+                    args[cnt] = columns[cnt][row];
+                }
+                return args;
+            }
+
+            @Override
+            public int size() {
+                return numRows;
+            }
+        };
+        return invokeBatch(rows, parallelExecutor);
+    }
+    
+    /**
+     * @return the text of the expression
+     */
+    public String getExpressionText() {
+        return exprText;
+    }
+    
+    /**
+     * Compiles the expression now rather than on its first invocation.  
+     * Does nothing if some of the input policies must still be inferred 
+     * from the arguments of the first invocation.
+     * 
+     * @return true if the expression is compiled
+     */
+    boolean precompile() {
+        synchronized (this) {
+            for (final InputPolicy policy : policies) {
+                if (policy == null) {
+                    return false;
+                }
+            }
+        }
+        return bind(new Object[varNames.length]).entry != null;
+    }
+    
+    /**
+     * Compiles the expression, inferring any missing input policies from the 
+     * arguments.
+     * 
+     * @param args
+     * @return the new binding
+     */
+    private synchronized Binding bind(Object[] args) {
+        
+        // read the generation first so that a module declared while we 
+        // are compiling causes another recompile
+        int generation = RunQuark.getModuleGeneration();
+        if (binding != null && binding.generation == generation && 
+                !binding.entry.isRemoved()) {
+            return binding;
+        }
+        
+        InputTuple[] inputs = new InputTuple[varNames.length];
+        for (int cnt = 0; cnt < varNames.length; cnt++) {
+            if (policies[cnt] == null) {
+                policies[cnt] = RunQuark.inferInputPolicy(args[cnt]);
+            }
+            inputs[cnt] = new InputTuple(null, policies[cnt], varNames[cnt]);
+        }
+
+        EntryPointCache.Entry entry = RunQuark.getEntry(exprText, inputs, 
+                policies.clone(), outPolicy, moduleNameStr);
+        Binding newBinding = new Binding(entry, generation);
+        
+        // keep failures unbound so that they are retried and reported
+        if (entry != null) {
+            binding = newBinding;
+        }
+        return newBinding;
+    }
+}
@@ -36,24 +36,23 @@
  */
 package org.openquark.cal.eclipse.embedded.exported;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openquark.cal.compiler.AdjunctSource;
 import org.openquark.cal.compiler.Compiler;
 import org.openquark.cal.compiler.CompilerMessage;
 import org.openquark.cal.compiler.CompilerMessageLogger;
-import org.openquark.cal.compiler.FieldName;
 import org.openquark.cal.compiler.MessageLogger;
 import org.openquark.cal.compiler.ModuleName;
 import org.openquark.cal.compiler.QualifiedName;
 import org.openquark.cal.compiler.Scope;
 import org.openquark.cal.compiler.SourceModel;
-import org.openquark.cal.compiler.SourceModelCopier;
 import org.openquark.cal.compiler.SourceModelModuleSource;
 import org.openquark.cal.compiler.SourceModelUtilities;
 import org.openquark.cal.compiler.CompilerMessage.Severity;
@@ -62,9 +61,6 @@ import org.openquark.cal.compiler.SourceModel.FunctionDefn;
 import org.openquark.cal.compiler.SourceModel.Import;
 import org.openquark.cal.compiler.SourceModel.ModuleDefn;
 import org.openquark.cal.compiler.SourceModel.Parameter;
-import org.openquark.cal.compiler.SourceModel.TypeExprDefn;
-import org.openquark.cal.compiler.SourceModel.Expr.Var;
-import org.openquark.cal.compiler.SourceModel.TypeExprDefn.Record.FieldTypePair;
 import org.openquark.cal.compiler.io.EntryPoint;
 import org.openquark.cal.compiler.io.EntryPointSpec;
 import org.openquark.cal.compiler.io.InputPolicy;
@@ -72,7 +68,6 @@ import org.openquark.cal.compiler.io.OutputPolicy;
 import org.openquark.cal.machine.CALExecutor;
 import org.openquark.cal.machine.Module;
 import org.openquark.cal.runtime.CALExecutorException;
-import org.openquark.cal.runtime.CalValue;
 import org.openquark.cal.services.BasicCALServices;
 
 /**
@@ -93,6 +88,12 @@ public class RunQuark implements IEmbeddedCalConstants {
      * constant referring to the evaluateExpressionThrowing method where exceptions must be explicitly handled 
      */
     public static final String EVALUATE_EXPRESSION_THROWING = "evaluateExpressionThrowing";
+    /** constant referring to the evaluateExpressionPrepared method */
+    public static final String EVALUATE_EXPRESSION_PREPARED = "evaluateExpressionPrepared";
+    /**
+     * constant referring to the evaluateExpressionPreparedThrowing method where exceptions must be explicitly handled 
+     */
+    public static final String EVALUATE_EXPRESSION_PREPARED_THROWING = "evaluateExpressionPreparedThrowing";
     private final static ModuleName PRELUDE_NAME = ModuleName
             .make("Cal.Core.Prelude");
     private final static ModuleName EMBEDDED_CAL_NAME = ModuleName
@@ -118,96 +119,176 @@ public class RunQuark implements IEmbeddedCalConstants {
         final String varName;
 
         /**
-         * Extracts the parameters from an array of input tuples
-         * 
-         * Ignores any element that is a source model
-         * 
-         * @param tuples
-         * @return array of parameters, one for each tuple
-         */
-        static Parameter[] params(InputTuple[] tuples) {
-            List<Parameter> params = new ArrayList<Parameter>(tuples.length);
-            for (int cnt = 0; cnt < tuples.length; cnt++) {
-                if (!(tuples[cnt].inputValue instanceof Expr)) {
-                    params.add(Parameter.make(tuples[cnt].varName, false));
-                }
-            }
-            return params.toArray(new Parameter[params.size()]);
-        }
-
-        /**
-         * Extracts the input policies from an array of input tuples. Any input
-         * tuple that has a <code>null</code> input policy triggers input
-         * policy inference using the input value.
-         * 
-         * Ignores any element that is a source model
-         * 
-         * @param tuples
-         * @return array of input policies, one for each tuple
+         * Splits an array of input tuples into the parts that are needed to
+         * compile and run an expression.  The tuples whose values are source
+         * models are spliced in directly to the expression, similar to an
+         * unquote.  The others become parameters of the compiled function.
+         * <p>
+         * The arrays are filled in a single pass over the tuples, so an 
+         * evaluation only partitions its inputs once.
          */
-        static InputPolicy[] policies(InputTuple[] tuples) {
-            List<InputPolicy> policies = new ArrayList<InputPolicy>(
-                    tuples.length);
-            for (int cnt = 0; cnt < tuples.length; cnt++) {
-                if (!(tuples[cnt].inputValue instanceof Expr)) {
-                    if (tuples[cnt].policy == null) {
-                        policies.add(inferInputPolicy(tuples[cnt].inputValue));
+        static final class Partition {
+            /** the parameters, one for each tuple that is not a source model */
+            final Parameter[] params;
+            
+            /** 
+             * the input policies, one for each tuple that is not a source 
+             * model.  Any input tuple that has a <code>null</code> input 
+             * policy triggers input policy inference using the input value.
+             */
+            final InputPolicy[] policies;
+            
+            /** 
+             * the input values, one for each tuple that is not a source 
+             * model
+             */
+            final Object[] values;
+            
+            /** the variable names and values of the tuples that are source models */
+            final Pair<String, Expr>[] spliceable;
+            
+            /**
+             * @param tuples
+             * @param policies the input policies of the tuples that are not 
+             * source models, or null to take them from the tuples
+             */
+            @SuppressWarnings("unchecked")
+            Partition(InputTuple[] tuples, InputPolicy[] policies) {
+                int length = tuples.length;
+                Parameter[] params = new Parameter[length];
+                InputPolicy[] inputPolicies = policies == null ? 
+                        new InputPolicy[length] : policies;
+                Object[] values = new Object[length];
+                Pair<String, Expr>[] spliceable = NO_SPLICES;
+                
+                int numParams = 0;
+                int numSplices = 0;
+                for (int cnt = 0; cnt < length; cnt++) {
+                    InputTuple tuple = tuples[cnt];
+                    if (tuple.inputValue instanceof Expr) {
+                        if (numSplices == 0) {
+                            spliceable = new Pair[length - cnt];
+                        }
+                        spliceable[numSplices++] = new Pair<String, Expr>(
+                                tuple.varName, (Expr) tuple.inputValue);
                     } else {
-                        policies.add(tuples[cnt].policy);
+                        params[numParams] = Parameter.make(tuple.varName, false);
+                        if (policies == null) {
+                            inputPolicies[numParams] = tuple.policy == null ? 
+                                    inferInputPolicy(tuple.inputValue) : tuple.policy;
+                        }
+                        values[numParams] = tuple.inputValue;
+                        numParams++;
                     }
                 }
-            }
-            return policies.toArray(new InputPolicy[policies.size()]);
-        }
-
-        /**
-         * Extracts the input values from an array of input tuples.
-         * 
-         * Ignores any element that is a source model
-         * 
-         * @param tuples
-         * @return array of input values, one for each tuple
-         */
-        static Object[] values(InputTuple[] tuples) {
-            List<Object> values = new ArrayList<Object>(tuples.length);
-            for (int cnt = 0; cnt < tuples.length; cnt++) {
-                if (!(tuples[cnt].inputValue instanceof Expr)) {
-                    values.add(tuples[cnt].inputValue);
+                
+                // only a mix of source models and values leaves room to trim
+                if (numSplices > 0) {
+                    if (numParams < length) {
+                        params = trim(params, new Parameter[numParams]);
+                        values = trim(values, new Object[numParams]);
+                        if (policies == null) {
+                            inputPolicies = trim(inputPolicies, new InputPolicy[numParams]);
+                        }
+                    }
+                    if (numSplices < spliceable.length) {
+                        spliceable = trim(spliceable, new Pair[numSplices]);
+                    }
                 }
+                this.params = params;
+                this.policies = inputPolicies;
+                this.values = values;
+                this.spliceable = spliceable;
+            }
+            
+            private static <T> T[] trim(T[] array, T[] trimmed) {
+                System.arraycopy(array, 0, trimmed, 0, trimmed.length);
+                return trimmed;
             }
-            return values.toArray();
         }
+        
+        @SuppressWarnings("unchecked")
+        private static final Pair<String, Expr>[] NO_SPLICES = new Pair[0];
+    }
 
-        /**
-         * Extracts all the input tuples that correspond to source model these
-         * tuples will get spliced in directly to the expression. It is similar
-         * to an unquote
-         * 
-         * @param tuples
-         * @return an array of Pairs that correspond to all inputs that are
-         *         source models
+    /**
+     * How CAL executors are shared between the threads that evaluate embedded
+     * expressions.
+     */
+    public static enum ConcurrencyMode {
+        /** 
+         * a single executor is shared by all threads.  This is only safe when
+         * expressions are evaluated from one thread at a time
          */
-        static Pair<String, Expr>[] spliceable(InputTuple[] tuples) {
-            List<Pair<String, Expr>> splice = new ArrayList<Pair<String, Expr>>(
-                    tuples.length);
-
-            for (int cnt = 0; cnt < tuples.length; cnt++) {
-                if (tuples[cnt].inputValue instanceof Expr) {
-                    splice.add(new Pair<String, Expr>(tuples[cnt].varName,
-                            (Expr) tuples[cnt].inputValue));
-                }
-            }
-            return splice.toArray(new Pair[splice.size()]);
-        }
+        SHARED,
+        
+        /** each thread gets its own executor, which it keeps */
+        THREAD_LOCAL,
+        
+        /** 
+         * executors are leased from a bounded pool.  Threads block when all
+         * executors are in use 
+         */
+        POOLED
     }
 
-    private static CompilerMessageLogger messageLogger = new MessageLogger();
+    /** 
+     * shared by all calls that compile nothing, so that they do not need a 
+     * logger of their own.  Nothing is ever logged to it.
+     */
+    private static final CompilerMessageLogger NO_MESSAGES = new MessageLogger();
+    
+    /** 
+     * the messages from the most recent call made by each thread.  every call
+     * that compiles gets its own logger so that concurrent calls do not mix 
+     * their messages
+     */
+    private static final ThreadLocal<CompilerMessageLogger> lastMessageLogger = 
+        new ThreadLocal<CompilerMessageLogger>() {
+            @Override
+            protected CompilerMessageLogger initialValue() {
+                return NO_MESSAGES;
+            }
+        };
+
+    private static volatile BasicCALServices calServices = null;
+
+    private static volatile Compiler compiler;
 
-    private static BasicCALServices calServices = null;
+    private static volatile ExecutorPool executorPool;
+    
+    private static volatile ConcurrencyMode concurrencyMode = ConcurrencyMode.SHARED;
+    
+    private static volatile int executorPoolSize = Runtime.getRuntime().availableProcessors();
+    
+    /** 
+     * the compiler and workspace are not thread safe, so compilation and 
+     * module declaration are serialized on this lock 
+     */
+    private static final Object compileLock = new Object();
 
-    private static Compiler compiler;
+    /** compiled expressions, so that each distinct expression is only compiled once */
+    private static final EntryPointCache entryPointCache = new EntryPointCache();
 
-    private static CALExecutor executor;
+    /** 
+     * used to give each compiled expression its own function name so that 
+     * compiling one expression does not replace another cached one.  Names 
+     * freed by the cache are used before new ones are made.
+     */
+    private static final AtomicInteger functionCounter = new AtomicInteger();
+
+    /** incremented each time a module is declared */
+    private static final AtomicInteger moduleGeneration = new AtomicInteger();
+    
+    /** the text and imports of declared modules */
+    private static final DeclaredModules declaredModules = new DeclaredModules();
+    
+    /** the deadline of evaluations that are not given one, or 0 for none */
+    private static volatile long evaluationTimeoutNanos = 0;
+    
+    static {
+        WarmUp.startFromSystemProperties();
+    }
 
     public static BasicCALServices getCalServices() {
         return calServices;
@@ -220,29 +301,132 @@ public class RunQuark implements IEmbeddedCalConstants {
      *            The BasicCALServices that this class will use
      */
     public static void init(BasicCALServices services) {
-        calServices = services;
-        if (calServices != null) {
-            compiler = calServices.getWorkspaceManager().getCompiler();
-            executor = calServices.getWorkspaceManager()
-            .makeExecutorWithNewContextAndDefaultProperties();
+        if (services != null) {
+            compiler = services.getWorkspaceManager().getCompiler();
+            executorPool = ExecutorPool.make(concurrencyMode, executorPoolSize, 
+                    services.getWorkspaceManager());
 
             // check to see if our Module exists
-            Module embeddedModule = calServices.getWorkspaceManager()
+            Module embeddedModule = services.getWorkspaceManager()
             .getModule(EMBEDDED_CAL_NAME);
             if (embeddedModule == null) {
-                calServices.addNewModule(new SourceModelModuleSource(ModuleDefn
+                CompilerMessageLogger messageLogger = new MessageLogger();
+                services.addNewModule(new SourceModelModuleSource(ModuleDefn
                         .make(EMBEDDED_CAL_NAME, new Import[] { Import
                                 .make(PRELUDE_NAME) },
                                 new SourceModel.TopLevelSourceElement[] {})),
                                 messageLogger);
 
-                outputMessages();
+                Diagnostics.report(messageLogger);
             }
+            
+            // published last, since other threads skip initialization once they see it
+            calServices = services;
         } else {
-            System.err.println("Error initializing BasicCALServices..." +
-            		"invalid workspace file?");
+            Diagnostics.reportFailure("Error initializing BasicCALServices..." +
+            		"invalid workspace file?", null);
+            calServices = null;
             compiler = null;
-            executor = null;
+            executorPool = null;
+        }
+    }
+    
+    /**
+     * Notified when the default workspace has been compiled
+     */
+    public static interface StartupListener {
+        /**
+         * @param elapsedMillis the time taken to compile the workspace
+         * @param succeeded false if the workspace could not be compiled
+         */
+        void workspaceStarted(long elapsedMillis, boolean succeeded);
+    }
+    
+    /**
+     * Registers a listener that is told how long it took to compile the 
+     * default workspace.  Listeners are called on the thread that compiled
+     * the workspace.
+     * 
+     * @param listener
+     */
+    public static void addStartupListener(StartupListener listener) {
+        WorkspaceStartup.addListener(listener);
+    }
+    
+    public static void removeStartupListener(StartupListener listener) {
+        WorkspaceStartup.removeListener(listener);
+    }
+    
+    /**
+     * @return the time taken to compile the default workspace, in 
+     * milliseconds, or -1 if it has not been compiled.  Workspaces passed to
+     * {@link #init(BasicCALServices)} are not timed.
+     */
+    public static long getStartupTimeMillis() {
+        return WorkspaceStartup.getStartupTimeMillis();
+    }
+    
+    /**
+     * Starts compiling the default workspace on a background thread, so 
+     * that the first evaluation does not have to wait for it.
+     * 
+     * @return the warm-up, which is done when the workspace is compiled
+     * @see #warmUp(String[], String[])
+     */
+    public static Future<?> warmUp() {
+        return warmUp(null, null);
+    }
+    
+    /**
+     * Starts preparing the CAL runtime on a background thread.  The default 
+     * workspace is compiled, then the modules are declared, and then the 
+     * prepared expressions held in static fields of the classes are 
+     * compiled.  Expressions whose input policies are inferred at their 
+     * first invocation are skipped.  Finally, the modules and expressions 
+     * listed in the precompile manifests on the class path are compiled.
+     * <p>
+     * The same warm-up can be started without code changes by setting the 
+     * system property <code>org.openquark.cal.eclipse.embedded.warmUp</code>
+     * to <code>true</code>, or by listing the classes in 
+     * <code>org.openquark.cal.eclipse.embedded.warmUpClasses</code>.  It then
+     * starts when RunQuark is loaded.
+     * 
+     * @param moduleTexts the text of modules to declare, or null
+     * @param classNames the fully qualified names of classes containing 
+     * embedded expressions, or null.  They are loaded with the context
+     * class loader of the calling thread.
+     * @return the warm-up, which is done when everything is compiled.  
+     * Failures are reported, but do not stop the warm-up.
+     */
+    public static Future<?> warmUp(String[] moduleTexts, String[] classNames) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = RunQuark.class.getClassLoader();
+        }
+        return WarmUp.start(moduleTexts, classNames, loader);
+    }
+    
+    /**
+     * Sets how CAL executors are shared between threads.  By default, a 
+     * single executor is shared by all threads, which is only safe if 
+     * embedded expressions are evaluated from one thread at a time.
+     * 
+     * @param mode how executors are shared
+     * @param poolSize the maximum number of executors when mode is 
+     * {@link ConcurrencyMode#POOLED}.  Ignored otherwise.
+     */
+    public static void setConcurrencyMode(ConcurrencyMode mode, int poolSize) {
+        if (mode == ConcurrencyMode.POOLED && poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+        }
+        concurrencyMode = mode;
+        executorPoolSize = poolSize;
+        AsyncScheduler.concurrencyModeChanged();
+        
+        // evaluations in progress keep using their executors from the old pool
+        BasicCALServices services = calServices;
+        if (services != null) {
+            executorPool = ExecutorPool.make(mode, poolSize, services.getWorkspaceManager());
         }
     }
     
@@ -250,7 +434,12 @@ public class RunQuark implements IEmbeddedCalConstants {
     /**
      * Creates a new module.  Each time this method is executed, a module 
      * with the same name (if it already exists) is replaced by the module created
-     * here.
+     * here.  Redeclaring a module with exactly the same text does nothing, 
+     * so this can be called each time the declaring code runs.
+     * <p>
+     * When a module changes, the expressions compiled in it and in the 
+     * declared modules that import it are discarded.  Other cached 
+     * expressions are kept.
      * 
      * @param moduleText the text of the module
      * @param moduleNameStr the module name.  only used for editing
@@ -261,24 +450,78 @@ public class RunQuark implements IEmbeddedCalConstants {
      */
     public static void declareModule(String moduleText, String moduleNameStr, 
             int width, int height, boolean isValid, boolean showAll) {
-        ModuleDefn defn = SourceModelUtilities.TextParsing.
-                parseModuleDefnIntoSourceModel(moduleText, messageLogger);
+        ensureInitialized();
         
-        if (calServices == null) {
-          init();
+        // an unchanged module does not need to be parsed or compiled again
+        ModuleName unchanged = declaredModules.lookup(moduleText);
+        if (unchanged != null && 
+                calServices.getWorkspaceManager().getModule(unchanged) != null) {
+            lastMessageLogger.set(NO_MESSAGES);
+            return;
         }
+        
+        CompilerMessageLogger messageLogger = new MessageLogger();
+        lastMessageLogger.set(messageLogger);
+        ModuleDefn defn = SourceModelUtilities.TextParsing.
+                parseModuleDefnIntoSourceModel(moduleText, messageLogger);
 
+        ModuleName moduleName;
+        synchronized (compileLock) {
+            if (defn != null) {
+                moduleName = defn.getModuleName();
+                calServices.addNewModule(new SourceModelModuleSource(defn), messageLogger);
+                
+                // failed modules are compiled again the next time, so that 
+                // their errors are reported again
+                Severity maxSeverity = messageLogger.getMaxSeverity();
+                if (maxSeverity == null || maxSeverity.compareTo(Severity.ERROR) < 0) {
+                    declaredModules.declared(moduleText, defn);
+                } else {
+                    declaredModules.forget(moduleName);
+                }
+            } else {
+                moduleName = ModuleName.make(moduleNameStr);
+                calServices.addNewModule(new SourceModelModuleSource(ModuleDefn
+                        .make(moduleName, new Import[] { Import
+                                .make(PRELUDE_NAME) },
+                                new SourceModel.TopLevelSourceElement[] {})),
+                                messageLogger);
+                declaredModules.forget(moduleName);
+            }
 
-        if (defn != null) {
-            calServices.addNewModule(new SourceModelModuleSource(defn), messageLogger);
-        } else {
-            ModuleName moduleName = ModuleName.make(moduleNameStr);
-            calServices.addNewModule(new SourceModelModuleSource(ModuleDefn
-                    .make(moduleName, new Import[] { Import
-                            .make(PRELUDE_NAME) },
-                            new SourceModel.TopLevelSourceElement[] {})),
-                            messageLogger);
+            // expressions compiled against the old module are now stale
+            for (final ModuleName stale : declaredModules.dependents(moduleName)) {
+                entryPointCache.invalidateModule(stale);
+            }
+            moduleGeneration.incrementAndGet();
         }
+        Diagnostics.report(messageLogger);
+    }
+
+    /**
+     * Sets the maximum number of compiled expressions that are kept.  When 
+     * more distinct expressions than this are evaluated, the least recently
+     * used ones are discarded and will be recompiled on their next use.
+     * 
+     * @param maxEntries the maximum number of compiled expressions to keep
+     */
+    public static void setEntryPointCacheSize(int maxEntries) {
+        entryPointCache.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Discards all compiled expressions.  They will be recompiled on their
+     * next use.
+     */
+    public static void clearEntryPointCache() {
+        entryPointCache.clear();
+    }
+
+    /**
+     * @return how CAL executors are currently shared between threads
+     */
+    public static ConcurrencyMode getConcurrencyMode() {
+        return concurrencyMode;
     }
 
     /**
@@ -324,11 +567,24 @@ public class RunQuark implements IEmbeddedCalConstants {
                     moduleNameStr, width, height, isValid, showAll);
 
         } catch (CALExecutorException e) {
-            outputMessages();
-            e.printStackTrace();
+            reportFailure(e);
+            return null;
+        } catch (EvaluationTimeoutException e) {
+            reportFailure(e);
             return null;
         }
     }
+
+    /**
+     * Reports an evaluation error for callers that do not want to handle 
+     * exceptions themselves.
+     * 
+     * @param e the error
+     */
+    static void reportFailure(Exception e) {
+        // the compiler messages were reported when the expression was compiled
+        Diagnostics.reportFailure("Error evaluating embedded CAL expression", e);
+    }
     
     
     /**
@@ -343,16 +599,366 @@ public class RunQuark implements IEmbeddedCalConstants {
      * @param showAll
      * @return the value of the CAL expression
      * @throws CALExecutorException in case of a CAL error
+     * @throws EvaluationTimeoutException if the default evaluation timeout 
+     * passes first
+     * @see #setEvaluationTimeout(long, TimeUnit)
      */
     public static Object evaluateExpressionThrowing(String exprText,
             InputTuple[] inputs, OutputPolicy outPolicy, String moduleNameStr, int width, int height,
             boolean isValid, boolean showAll) throws CALExecutorException {
 
-        messageLogger = new MessageLogger();
+        return evaluate(exprText, inputs, outPolicy, moduleNameStr, 
+                evaluationTimeoutNanos);
+    }
+
+    /**
+     * Evaluates an expression, giving up if it does not finish in time.  The
+     * CAL executor is asked to quit when the timeout passes, and it is then
+     * replaced by a fresh one.
+     * <p>
+     * In the {@link ConcurrencyMode#SHARED} mode, quitting the shared executor 
+     * also terminates any other evaluations running on it.  Use one of the 
+     * other modes to isolate evaluations from each other.
+     * <p>
+     * For the ITERATOR_OUTPUT_POLICY, the timeout covers producing the 
+     * iterator, but not reading its elements.
+     * 
+     * @param exprText
+     *            The text of the expression. all escaped values are replaced by
+     *            argument names
+     * @param inputs
+     *            each tuple contains an argument and its input policy
+     * @param outPolicy
+     *            the output policy
+     * @param moduleNameStr Name of the module to run this code in
+     * @param timeout the time that the evaluation may take, or 0 for no limit.
+     * Compiling the expression does not count against the timeout.
+     * @param unit the unit of timeout
+     * @return the value of the CAL expression
+     * @throws CALExecutorException in case of a CAL error
+     * @throws EvaluationTimeoutException if the timeout passes first
+     */
+    public static Object evaluateExpressionWithTimeout(String exprText,
+            InputTuple[] inputs, OutputPolicy outPolicy, String moduleNameStr, 
+            long timeout, TimeUnit unit) throws CALExecutorException {
         
-        if (calServices == null) {
-            init();
+        return evaluate(exprText, inputs, outPolicy, moduleNameStr, 
+                unit.toNanos(timeout));
+    }
+    
+    static Object evaluate(String exprText, InputTuple[] inputs, 
+            OutputPolicy outPolicy, String moduleNameStr, long timeoutNanos) 
+            throws CALExecutorException {
+        
+        // the measurements are kept with the cached entry point, so that a
+        // warm evaluation does not have to look them up by the expression text
+        boolean measure = Metrics.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        InputTuple.Partition parts = new InputTuple.Partition(inputs, null);
+        long marshalNanos = measure ? System.nanoTime() - start : 0;
+        
+        // an entry removed from the cache before it is acquired may have 
+        // had its function replaced, so it is looked up again
+        EntryPointCache.Entry entry;
+        do {
+            entry = getEntry(exprText, inputs, parts, outPolicy, moduleNameStr);
+        } while (entry != null && !entry.acquire());
+        EntryPoint point = null;
+        Metrics.ExpressionMetrics metrics = null;
+        if (entry != null) {
+            point = entry.entryPoint;
+            if (measure) {
+                metrics = entry.metrics;
+                if (metrics == null) {
+                    // measuring was turned on after the expression was compiled
+                    metrics = Metrics.forExpression(moduleNameStr, exprText);
+                    entry.metrics = metrics;
+                }
+                if (metrics != null) {
+                    metrics.record(Metrics.Phase.MARSHAL, marshalNanos);
+                }
+            }
+        }
+        
+        return exec(point, entry, exprText, parts.values, 
+                outPolicy == OutputPolicy.ITERATOR_OUTPUT_POLICY, timeoutNanos, metrics);
+    }
+    
+    /**
+     * Sets the timeout of evaluations that are not given one explicitly.  
+     * This bounds the time that a runaway expression can hold on to a 
+     * thread and a CAL executor.
+     * 
+     * @param timeout the time that an evaluation may take, or 0 for no limit
+     * @param unit the unit of timeout
+     */
+    public static void setEvaluationTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeout);
         }
+        evaluationTimeoutNanos = unit.toNanos(timeout);
+    }
+    
+    /**
+     * @return the default evaluation timeout in nanoseconds, or 0 for none
+     */
+    static long getEvaluationTimeoutNanos() {
+        return evaluationTimeoutNanos;
+    }
+
+    /**
+     * Starts evaluating an expression on a scheduler thread and returns 
+     * immediately.  This lets a thread start several independent 
+     * expressions and then wait for all of their results.
+     * <p>
+     * Unless {@link #setAsyncScheduler(ExecutorService)} or 
+     * {@link #setAsyncScheduler(int, int)} is called, evaluations run on a
+     * fixed pool of threads.  The pool has one thread per processor, or only 
+     * one thread in the {@link ConcurrencyMode#SHARED} mode.  When too many 
+     * evaluations are waiting, this method blocks until there is space.
+     * 
+     * @param exprText
+     *            The text of the expression. all escaped values are replaced by
+     *            argument names
+     * @param inputs
+     *            each tuple contains an argument and its input policy
+     * @param outPolicy
+     *            the output policy
+     * @param moduleNameStr Name of the module to run this code in
+     * @return the pending value of the CAL expression.  A CAL error is 
+     * reported as an ExecutionException caused by a CALExecutorException
+     */
+    public static Future<Object> evaluateExpressionAsync(final String exprText,
+            final InputTuple[] inputs, final OutputPolicy outPolicy, 
+            final String moduleNameStr) {
+        return AsyncScheduler.get().submit(new Callable<Object>() {
+            public Object call() throws CALExecutorException {
+                return evaluateExpressionThrowing(exprText, inputs, outPolicy, 
+                        moduleNameStr, 0, 0, true, false);
+            }
+        });
+    }
+    
+    /**
+     * Sets the threads that run asynchronous evaluations.  The caller 
+     * remains responsible for shutting down the scheduler.  Evaluations
+     * run concurrently must not share a CAL executor, so a scheduler with 
+     * more than one thread requires the {@link ConcurrencyMode#THREAD_LOCAL}
+     * or {@link ConcurrencyMode#POOLED} mode.
+     * 
+     * @param scheduler the threads to evaluate on
+     */
+    public static void setAsyncScheduler(ExecutorService scheduler) {
+        AsyncScheduler.set(scheduler, false);
+    }
+    
+    /**
+     * Replaces the threads that run asynchronous evaluations with a fixed 
+     * pool of daemon threads.
+     * 
+     * @param numThreads the number of evaluations that can run at once
+     * @param queueCapacity the number of evaluations that can wait for a 
+     * thread before callers of evaluateExpressionAsync block
+     */
+    public static void setAsyncScheduler(int numThreads, int queueCapacity) {
+        AsyncScheduler.set(AsyncScheduler.makeFixed(numThreads, queueCapacity), true);
+    }
+
+    /**
+     * Evaluates an expression whose value is a CAL list, returning an
+     * iterator that evaluates the list incrementally as it is read.  This 
+     * lets callers process huge lists in constant memory, and stop early.
+     * <p>
+     * The iterator holds on to a CAL executor until it is exhausted or
+     * closed, so callers that stop early must call 
+     * {@link ResultIterator#close()}.
+     * 
+     * @param exprText
+     *            The text of the expression. all escaped values are replaced by
+     *            argument names
+     * @param inputs
+     *            each tuple contains an argument and its input policy
+     * @param moduleNameStr Name of the module to run this code in
+     * @return an iterator over the elements of the list
+     * @throws CALExecutorException in case of a CAL error
+     */
+    public static ResultIterator evaluateExpressionStreaming(String exprText,
+            InputTuple[] inputs, String moduleNameStr) throws CALExecutorException {
+        return (ResultIterator) evaluateExpressionThrowing(exprText, inputs, 
+                OutputPolicy.ITERATOR_OUTPUT_POLICY, moduleNameStr, 0, 0, true, false);
+    }
+
+    /**
+     * Creates a handle to an expression that is compiled once, on its first
+     * invocation.  Invoking the handle skips parsing, compilation, and
+     * input policy inference, so this is the fastest way to evaluate an 
+     * expression repeatedly.  Handles are typically stored in static final 
+     * fields.
+     * <p>
+     * Any <code>null</code> input policy is inferred from the arguments of 
+     * the first invocation, and is then fixed for the life of the handle.
+     * 
+     * @param exprText
+     *            The text of the expression.
+     * @param varNames
+     *            the names of the free variables of the expression, in the
+     *            order that their values are passed to invoke
+     * @param policies
+     *            the input policies, one for each variable.  May be 
+     *            <code>null</code> if all policies are to be inferred
+     * @param outPolicy
+     *            the output policy, or <code>null</code> for the default
+     * @param moduleNameStr 
+     *            Name of the module to run this code in, or <code>null</code>
+     *            for the default module
+     * @return a handle that evaluates the expression
+     */
+    public static PreparedExpression prepare(String exprText, String[] varNames,
+            InputPolicy[] policies, OutputPolicy outPolicy, String moduleNameStr) {
+        return new PreparedExpression(exprText, varNames, policies, 
+                outPolicy, moduleNameStr);
+    }
+
+    /**
+     * Creates a handle to a public function of a module.  Invoking the handle
+     * calls the function directly, without parsing or compiling an 
+     * expression.  Facade classes generated from module editors store these 
+     * handles in static final fields.
+     * 
+     * @param moduleNameStr
+     *            Name of the module that defines the function
+     * @param functionName
+     *            the unqualified name of the function
+     * @param policies
+     *            the input policies, one for each argument of the function.
+     *            They are not inferred, so none may be <code>null</code>
+     * @param outPolicy
+     *            the output policy, or <code>null</code> for the default
+     * @return a handle that calls the function
+     */
+    public static ModuleFunction prepareFunction(String moduleNameStr, 
+            String functionName, InputPolicy[] policies, OutputPolicy outPolicy) {
+        return new ModuleFunction(moduleNameStr, functionName, policies, outPolicy);
+    }
+
+    /**
+     * Evaluates an expression once for each row of arguments.  The expression
+     * is compiled once, and input policies are inferred from the first row.
+     * 
+     * @param exprText
+     *            The text of the expression.
+     * @param varNames
+     *            the names of the free variables of the expression, in the
+     *            order that their values appear in each row
+     * @param rows
+     *            the arguments of each evaluation
+     * @param outPolicy
+     *            the output policy, or <code>null</code> for the default
+     * @param moduleNameStr 
+     *            Name of the module to run this code in, or <code>null</code>
+     *            for the default module
+     * @param parallelExecutor
+     *            the threads to evaluate the rows on, or <code>null</code> to 
+     *            evaluate them on the calling thread
+     * @return the results, in the same order as the rows
+     * @throws CALExecutorException in case of a CAL error
+     * @see PreparedExpression#invokeBatch(List, ExecutorService)
+     */
+    public static List<Object> evaluateBatch(String exprText, String[] varNames,
+            List<Object[]> rows, OutputPolicy outPolicy, String moduleNameStr, 
+            ExecutorService parallelExecutor) throws CALExecutorException {
+        return prepare(exprText, varNames, null, outPolicy, moduleNameStr)
+            .invokeBatch(rows, parallelExecutor);
+    }
+
+    /**
+     * The serialized form of an embedded editor that evaluates through a
+     * prepared handle.  As with evaluateExpression, the last arguments are 
+     * only used at edit time to store the state of the embedded editor.  
+     * The expression text, output policy, and module name are also stored 
+     * in the handle, so they are ignored here.
+     * 
+     * @param handle the prepared expression that is evaluated
+     * @param exprText has no runtime effect
+     * @param args the values of the free variables of the expression
+     * @param outPolicy has no runtime effect
+     * @param moduleNameStr has no runtime effect
+     * @param width has no runtime effect
+     * @param height has no runtime effect
+     * @param isValid has no runtime effect
+     * @param showAll has no runtime effect
+     * @return the value of the CAL expression
+     */
+    public static Object evaluateExpressionPrepared(PreparedExpression handle,
+            String exprText, Object[] args, OutputPolicy outPolicy, 
+            String moduleNameStr, int width, int height, boolean isValid, 
+            boolean showAll) {
+        return handle.invoke(args);
+    }
+
+    /**
+     * @see #evaluateExpressionPrepared(PreparedExpression, String, Object[], OutputPolicy, String, int, int, boolean, boolean)
+     * @param handle
+     * @param exprText
+     * @param args
+     * @param outPolicy
+     * @param moduleNameStr
+     * @param width
+     * @param height
+     * @param isValid
+     * @param showAll
+     * @return the value of the CAL expression
+     * @throws CALExecutorException in case of a CAL error
+     */
+    public static Object evaluateExpressionPreparedThrowing(PreparedExpression handle,
+            String exprText, Object[] args, OutputPolicy outPolicy, 
+            String moduleNameStr, int width, int height, boolean isValid, 
+            boolean showAll) throws CALExecutorException {
+        return handle.invokeThrowing(args);
+    }
+
+    /**
+     * Finds the compiled form of an expression, compiling it if it is not 
+     * already cached.
+     * 
+     * @param exprText
+     * @param inputs the input variables. Only the names are used, unless the 
+     * value is a source model that must be spliced in
+     * @param policies the input policies of the inputs that are not source models
+     * @param outPolicy the output policy, or <code>null</code> for the default
+     * @param moduleNameStr the module name, or <code>null</code> for the default
+     * @return the entry point, or <code>null</code> if the expression does not 
+     * compile.  The errors are available from {@link #getCompilerMessages()}
+     */
+    static EntryPoint getEntryPoint(String exprText, InputTuple[] inputs, 
+            InputPolicy[] policies, OutputPolicy outPolicy, String moduleNameStr) {
+        EntryPointCache.Entry entry = getEntry(exprText, inputs, policies, 
+                outPolicy, moduleNameStr);
+        return entry == null ? null : entry.entryPoint;
+    }
+    
+    /**
+     * @see #getEntryPoint(String, InputTuple[], InputPolicy[], OutputPolicy, String)
+     * @return the cache entry holding the entry point, or <code>null</code> 
+     * if the expression does not compile.  The entry must be acquired 
+     * while its entry point runs.
+     */
+    static EntryPointCache.Entry getEntry(String exprText, InputTuple[] inputs, 
+            InputPolicy[] policies, OutputPolicy outPolicy, String moduleNameStr) {
+        return getEntry(exprText, inputs, new InputTuple.Partition(inputs, policies), 
+                outPolicy, moduleNameStr);
+    }
+    
+    /**
+     * @see #getEntryPoint(String, InputTuple[], InputPolicy[], OutputPolicy, String)
+     * @param parts the partitioned inputs
+     * @return the cache entry holding the entry point and the measurements 
+     * of the expression, or <code>null</code> if the expression does not compile
+     */
+    private static EntryPointCache.Entry getEntry(String exprText, InputTuple[] inputs, 
+            InputTuple.Partition parts, OutputPolicy outPolicy, String moduleNameStr) {
+
+        ensureInitialized();
         
         if (outPolicy == null) {
           outPolicy = OutputPolicy.DEFAULT_OUTPUT_POLICY;
@@ -364,109 +970,287 @@ public class RunQuark implements IEmbeddedCalConstants {
         }
         moduleName = ModuleName.make(moduleNameStr);
 
-        EntryPointSpec spec = EntryPointSpec.make(QualifiedName.make(
-                moduleNameStr, "func"), InputTuple.policies(inputs),
-                outPolicy);
+        EntryPointCache.Key key = makeCacheKey(moduleName, exprText, inputs, 
+                parts.policies, outPolicy);
 
+        EntryPointCache.Entry entry = entryPointCache.get(key);
+        Metrics.cacheLookup(entry != null);
+        if (entry != null) {
+            // a cached expression has no new messages to report
+            lastMessageLogger.set(NO_MESSAGES);
+            return entry;
+        }
+        Metrics.ExpressionMetrics metrics = Metrics.forExpression(moduleNameStr, exprText);
+        
+        CompilerMessageLogger messageLogger = new MessageLogger();
+        lastMessageLogger.set(messageLogger);
+        synchronized (compileLock) {
+            // another thread may have compiled it while we were waiting
+            entry = entryPointCache.get(key);
+            if (entry == null) {
+                String functionName = entryPointCache.takeFreeName(moduleName);
+                if (functionName == null) {
+                    functionName = "func" + functionCounter.incrementAndGet();
+                }
+                EntryPointSpec spec = EntryPointSpec.make(QualifiedName.make(
+                        moduleNameStr, functionName), parts.policies, outPolicy);
 
-        EntryPoint point = compiler.getEntryPoint(makeAdjunctSource(
-                exprText, inputs), spec, moduleName, messageLogger);
+                AdjunctSource source = makeAdjunctSource(
+                        exprText, parts, functionName, messageLogger, metrics);
+                long start = metrics == null ? 0 : System.nanoTime();
+                EntryPoint point = compiler.getEntryPoint(source, spec, moduleName, messageLogger);
+                if (metrics != null) {
+                    metrics.record(Metrics.Phase.COMPILE, System.nanoTime() - start);
+                }
 
-        return executor.exec(point, InputTuple.values(inputs));
+                // do not cache failures so that the errors are reported each time
+                if (point != null) {
+                    entry = entryPointCache.put(key, functionName, point, metrics);
+                } else {
+                    entryPointCache.freeName(moduleName, functionName);
+                    if (metrics != null) {
+                        metrics.failed(false);
+                    }
+                }
+            }
+        }
+        Diagnostics.report(messageLogger);
+        return entry;
+    }
+
+    /**
+     * Finds the entry point of a function that is already defined in a 
+     * module, so that no adjunct has to be compiled for it.
+     * 
+     * @param moduleNameStr the module that defines the function
+     * @param functionName the unqualified name of the function
+     * @param policies the input policies of the arguments
+     * @param outPolicy the output policy
+     * @return the entry point, or <code>null</code> if the function does not 
+     * exist or does not accept the policies.  The errors are available from 
+     * {@link #getCompilerMessages()}
+     */
+    static EntryPoint getFunctionEntryPoint(String moduleNameStr, 
+            String functionName, InputPolicy[] policies, OutputPolicy outPolicy) {
+        
+        ensureInitialized();
+        
+        ModuleName moduleName = ModuleName.make(moduleNameStr);
+        EntryPointSpec spec = EntryPointSpec.make(QualifiedName.make(
+                moduleName, functionName), policies, outPolicy);
+        
+        CompilerMessageLogger messageLogger = new MessageLogger();
+        lastMessageLogger.set(messageLogger);
+        EntryPoint point;
+        synchronized (compileLock) {
+            point = compiler.getEntryPoint(spec, moduleName, messageLogger);
+        }
+        Diagnostics.report(messageLogger);
+        return point;
     }
 
+    /**
+     * Runs a compiled expression on an executor from the pool
+     * 
+     * @param point the compiled expression
+     * @param entry the acquired cache entry of the expression, or null if 
+     * the entry point is not cached.  It is released when the evaluation is
+     * done, or when the iterator of a streaming result is closed.
+     * @param exprText the text of the expression, for error messages
+     * @param values the marshaled input values
+     * @param streaming true if the expression was compiled with the 
+     * ITERATOR_OUTPUT_POLICY.  The result is then wrapped in a 
+     * {@link ResultIterator} that keeps the executor until it is done.
+     * @param timeoutNanos the time that the evaluation may take, or 0 for no limit
+     * @param metrics the measurements of the expression, or null if it is not measured
+     * @return the value of the expression
+     * @throws CALExecutorException
+     * @throws EvaluationTimeoutException if the timeout passes first
+     */
+    static Object exec(EntryPoint point, EntryPointCache.Entry entry, String exprText, 
+            Object[] values, boolean streaming, long timeoutNanos, 
+            Metrics.ExpressionMetrics metrics) throws CALExecutorException {
+        ExecutorPool pool = executorPool;
+        CALExecutor executor = pool.acquire();
+        EvaluationTimer timer = timeoutNanos > 0 ? 
+                EvaluationTimer.start(executor, timeoutNanos) : null;
+        boolean release = true;
+        try {
+            Object result;
+            long start = metrics == null ? 0 : System.nanoTime();
+            try {
+                result = executor.exec(point, values);
+            } catch (CALExecutorException e) {
+                boolean timedOut = timer != null && timer.finish();
+                if (metrics != null) {
+                    metrics.failed(timedOut);
+                }
+                if (timedOut) {
+                    throw new EvaluationTimeoutException(exprText, timeoutNanos, e);
+                }
+                throw e;
+            }
+            if (metrics != null) {
+                metrics.record(Metrics.Phase.EXEC, System.nanoTime() - start);
+            }
+            
+            if (streaming && result instanceof Iterator) {
+                if (timer != null && timer.finish()) {
+                    // the executor was told to quit just as the evaluation 
+                    // finished, so it cannot evaluate the rest of the list
+                    throw new EvaluationTimeoutException(exprText, timeoutNanos, null);
+                }
+                release = false;
+                pool.lease(executor);
+                return new ResultIterator((Iterator<?>) result, pool, executor, entry);
+            }
+            return result;
+        } finally {
+            if (timer != null && timer.finish()) {
+                pool.discard(executor);
+            } else if (release) {
+                pool.release(executor);
+            }
+            if (release && entry != null) {
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * @return the number of compiled expressions in the cache
+     */
+    static int getCachedEntryPointCount() {
+        return entryPointCache.size();
+    }
     
+    /**
+     * @return the number of executors currently evaluating
+     */
+    static int getActiveExecutorCount() {
+        ExecutorPool pool = executorPool;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /**
+     * @return a number that changes every time a module is declared.  Holders
+     * of compiled entry points use this to find out that they are stale.
+     */
+    static int getModuleGeneration() {
+        return moduleGeneration.get();
+    }
+
+    /**
+     * Creates the key that identifies the compiled form of an expression.  
+     * Source model inputs are spliced into the expression before it is 
+     * compiled, so their text is part of the key.
+     * 
+     * @param moduleName
+     * @param exprText
+     * @param inputs
+     * @param policies the input policies of the inputs that are not source models
+     * @param outPolicy
+     * @return the cache key
+     */
+    private static EntryPointCache.Key makeCacheKey(ModuleName moduleName,
+            String exprText, InputTuple[] inputs, InputPolicy[] policies,
+            OutputPolicy outPolicy) {
+        
+        String[] varNames = new String[inputs.length];
+        for (int cnt = 0; cnt < inputs.length; cnt++) {
+            if (inputs[cnt].inputValue instanceof Expr) {
+                varNames[cnt] = inputs[cnt].varName + "=" + 
+                    SpliceCache.sourceText((Expr) inputs[cnt].inputValue);
+            } else {
+                varNames[cnt] = inputs[cnt].varName;
+            }
+        }
+        
+        String[] policyKeys = new String[policies.length];
+        for (int cnt = 0; cnt < policies.length; cnt++) {
+            policyKeys[cnt] = EntryPointCache.policyKey(policies[cnt]);
+        }
+        
+        return new EntryPointCache.Key(moduleName, exprText, varNames, 
+                policyKeys, EntryPointCache.policyKey(outPolicy));
+    }
 
     /**
      * makes a best guess on what the input policy should be. if it can't be
      * determined, then the failsafe policy is used
      * 
-     * if a Collection or Enumerable is passed in, then check to see if all
-     * elements are of the same type. If yes, then parameterize the InputPolicy
-     * with that type
+     * if a Collection, array, or Map is passed in, then the types of its 
+     * elements are inferred recursively.  If all elements have the same 
+     * type, then the InputPolicy is parameterized with that type, so that
+     * a double[][] is passed to CAL as a [[Double]], and a Map of lists 
+     * becomes a record of lists.
      * 
-     * XXX this isn't quite good enough yet, this should be fully recursive and
-     * be able to get the input policy on arrays of arrays of doubles, or lists
-     * of arrays of lists of ...
+     * Policies are cached per type, so the same policy instance is returned
+     * for arguments of the same type.
      * 
      * @param arg
      *            the argument whose input policy should be inferred
      * @return the inferred input policy
      */
     public static InputPolicy inferInputPolicy(Object arg) {
+        return InputPolicyInference.infer(arg);
+    }
     
-        if (arg instanceof Map) {
-          Map<FieldName, Object> map = (Map<FieldName, Object>) arg;
-          FieldTypePair[] fields = new FieldTypePair[map.size()];
-          int cnt = 0;
-          for (final Entry<FieldName, Object> entry : map.entrySet()) {
-            fields[cnt] = FieldTypePair.make(SourceModel.Name.Field.make(entry.getKey()),
-                primitiveClassToTypeExpr(entry.getValue().getClass()));
-            cnt++;
-          }
-          
-          TypeExprDefn type = TypeExprDefn.Record.make(null, fields);
-          
-          return InputPolicy.makeTypedDefaultInputPolicy(type);
-        } else if (arg instanceof Collection) {
-            Collection<?> col = (Collection<?>) arg;
-            Iterator<?> vals = col.iterator();
-            Class<?> c = null;
-    
-            // ensure that every value in the collection has the same type
-            if (vals.hasNext()) {
-                c = vals.next().getClass();
-                while (vals.hasNext()) {
-                    if (vals.next().getClass() != c) {
-                        c = null;
-                        break;
-                    }
-                }
-            }
-    
-            TypeExprDefn listOf;
-            listOf = primitiveClassToTypeExpr(c);
+    /**
+     * Sets how many elements of a collection are checked when inferring its 
+     * input policy.  If all of the checked elements have the same type, the 
+     * collection is assumed to be a list of that type.  Checking only a 
+     * sample makes inference of large collections cheap, but a collection 
+     * whose unchecked elements have a different type will then fail to 
+     * marshal.  Such collections should be given an explicit policy, for 
+     * example from {@link #listInputPolicy(Class)}.
+     * 
+     * @param size the number of elements to check, or 0 to check every 
+     * element (the default)
+     */
+    public static void setCollectionSampleSize(int size) {
+        InputPolicyInference.setSampleSize(size);
+    }
     
-            if (listOf != null) {
-                TypeExprDefn type = SourceModel.TypeExprDefn.List.make(listOf);
-                return InputPolicy.makeTypedDefaultInputPolicy(type);
-            } else {
-                return InputPolicy.DEFAULT_INPUT_POLICY;
-            }
-        } else if (arg.getClass().isArray()) {
-            Class<?> component = arg.getClass().getComponentType();
-            TypeExprDefn listOf;
-            listOf = primitiveClassToTypeExpr(component);
-            if (listOf != null) {
-                TypeExprDefn type = SourceModel.TypeExprDefn.List.make(listOf);
-                return InputPolicy.makeTypedDefaultInputPolicy(type);
-            } else {
-                return InputPolicy.DEFAULT_INPUT_POLICY;
-            }
+    /**
+     * Use this to give a type hint for a collection so that its elements
+     * are not checked at all.
+     * 
+     * @param elementClass the class of the elements of the collection
+     * @return the input policy for a collection of elements of the given class
+     */
+    public static InputPolicy listInputPolicy(Class<?> elementClass) {
+        return InputPolicyInference.listPolicy(elementClass);
+    }
     
-        } else if (arg instanceof CalValue) {
-            return InputPolicy.CAL_VALUE_INPUT_POLICY;
-        } else {
-            TypeExprDefn type = primitiveClassToTypeExpr(arg.getClass());
-            if (type != null) {
-              return InputPolicy.makeTypedDefaultInputPolicy(type);
-            } else {
-              return InputPolicy.DEFAULT_INPUT_POLICY;
-            }
-        }
+    /**
+     * Use this to give the input policy of an argument whose declared type
+     * fixes its class, such as an int or a String.  It is the same policy 
+     * that would be inferred from any value of the class, so an expression
+     * can be compiled before it is first evaluated.
+     * 
+     * @param c the class of the argument
+     * @return the input policy that inference gives values of the class
+     */
+    public static InputPolicy inputPolicyFor(Class<?> c) {
+        return InputPolicyInference.classPolicy(c);
     }
     
     /**
      * @return compiler messages (errors, warnings, etc) for the most recent 
-     * call into an embedded editor
+     * call into an embedded editor made by the current thread
      */
     public List<CompilerMessage> getCompilerMessages() {
-        return messageLogger.getCompilerMessages();
+        return lastMessageLogger.get().getCompilerMessages();
     }
 
     /**
      * Takes the initial model and splices in all of the pairs where
      * appropriate. Performs an unquote operation
+     * <p>
+     * The pairs are indexed by variable name, so each variable in the model
+     * costs one lookup, and only the parts of the model that contain a 
+     * spliced variable are copied.
      * 
      * @param initModel
      * @param toSplice
@@ -474,53 +1258,21 @@ public class RunQuark implements IEmbeddedCalConstants {
      */
     static Expr spliceInSourceModelParams(Expr initModel,
             final Pair<String, Expr>[] toSplice) {
-    
-        if (toSplice.length > 0) {
-            return (Expr) initModel.accept(new SourceModelCopier<Void>() {
-                @Override
-                public Expr visit_Expr_Var(Var var, Void arg) {
-                    Expr foundExpr = null;
-                    for (final Pair<String, Expr> pair : toSplice) {
-                        if (pair.fst().equals(var.toSourceText())) {
-                            foundExpr = pair.snd();
-                            break;
-                        }
-                    }
-                    if (foundExpr != null) {
-                        return foundExpr;
-                    } else {
-                        return super.visit_Expr_Var(var, arg);
-                    }
-                }
-            }, null);
-        } else {
-            return initModel;
-        }
-    }
-
-    /**
-     * initialize the BasicCALServices with the default workspace
-     */
-    private static void init() {
-        init(BasicCALServices.makeCompiled(WORKSPACE_NAME, messageLogger));
+        return SourceModelSplicer.splice(initModel, toSplice);
     }
 
     /**
-     * Outputs compiler errors, warnings, and infos to STDERR and STDOUT
+     * initialize the BasicCALServices with the default workspace, unless 
+     * they have already been initialized.  The workspace is only compiled 
+     * once, even when several threads get here at the same time.
+     * 
+     * @throws IllegalStateException if the workspace could not be compiled.
+     * The compiler messages have been reported to {@link Diagnostics}.
      */
-    private static void outputMessages() {
-        if (messageLogger.getNMessages() > 0) {
-            for (final CompilerMessage message : messageLogger
-                    .getCompilerMessages()) {
-                if (message.getSeverity().compareTo(Severity.ERROR) >= 0) {
-                    System.err.println(message.getMessage());
-                } else {
-                    System.out.println(message.getMessage());
-                }
-            }
-
-            // clear old messages
-            messageLogger = new MessageLogger();
+    private static void ensureInitialized() {
+        if (calServices == null && WorkspaceStartup.await() == null) {
+            throw new IllegalStateException("Could not start the CAL workspace " + 
+                    WORKSPACE_NAME);
         }
     }
 
@@ -530,45 +1282,47 @@ public class RunQuark implements IEmbeddedCalConstants {
      * 
      * @param exprText
      *            the text to create the adjunct from
-     * @param inputs
-     *            the input policies, values, and variable names
+     * @param parts
+     *            the partitioned input policies, values, and variable names
+     * @param functionName
+     *            the name of the function that wraps the expression
+     * @param messageLogger
+     *            logger for any parse errors
+     * @param metrics
+     *            where the parse and splice times are recorded, or null
      * @return the adjunct
      */
     private static AdjunctSource makeAdjunctSource(String exprText,
-            InputTuple[] inputs) {
-
-        // create initial expression
-        Expr e = SourceModelUtilities.TextParsing.parseExprIntoSourceModel(
-                exprText, messageLogger);
+            InputTuple.Partition parts, String functionName, 
+            CompilerMessageLogger messageLogger, Metrics.ExpressionMetrics metrics) {
 
-        // substitute in source model where necessary
-        e = spliceInSourceModelParams(e, InputTuple.spliceable(inputs));
+        // the same source models may already have been spliced into this 
+        // expression, for another input or output policy
+        Pair<String, Expr>[] toSplice = parts.spliceable;
+        Expr e = toSplice.length > 0 ? 
+                SpliceCache.getSpliced(exprText, toSplice) : null;
+        if (e == null) {
+            // create initial expression
+            long start = metrics == null ? 0 : System.nanoTime();
+            e = SourceModelUtilities.TextParsing.parseExprIntoSourceModel(
+                    exprText, messageLogger);
+            long parsed = metrics == null ? 0 : System.nanoTime();
+    
+            // substitute in source model where necessary
+            if (e != null && toSplice.length > 0) {
+                e = spliceInSourceModelParams(e, toSplice);
+                SpliceCache.putSpliced(exprText, toSplice, e);
+            }
+            
+            if (metrics != null) {
+                metrics.record(Metrics.Phase.PARSE, parsed - start);
+                metrics.record(Metrics.Phase.SPLICE, System.nanoTime() - parsed);
+            }
+        }
 
-        FunctionDefn f = SourceModel.FunctionDefn.Algebraic.make("func",
-                Scope.PUBLIC, InputTuple.params(inputs), e);
+        FunctionDefn f = SourceModel.FunctionDefn.Algebraic.make(functionName,
+                Scope.PUBLIC, parts.params, e);
 
         return new AdjunctSource.FromSourceModel(f);
     }
-
-    private static TypeExprDefn primitiveClassToTypeExpr(Class<?> c) {
-        if (c == null) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "JObject");
-        } else if (c.equals(Integer.class) || c.equals(int.class)) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Int");
-        } else if (c.equals(Double.class) || c.equals(double.class)) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Double");
-        } else if (c.equals(Character.class) || c.equals(char.class)) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Character");
-        } else if (c.equals(Boolean.class) || c.equals(boolean.class)) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Boolean");
-        } else if (c.equals(String.class)) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "String");
-        } else if (c.equals(Byte.class) || c.equals(byte.class)) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Byte");
-        } else if (c.equals(Float.class) || c.equals(float.class)) {
-            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Float");
-        } else {
-            return null;
-        }
-    }
 }
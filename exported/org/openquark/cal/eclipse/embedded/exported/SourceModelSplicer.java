@@ -0,0 +1,605 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * SourceModelSplicer.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openquark.cal.compiler.SourceModelCopier;
+import org.openquark.cal.compiler.SourceModelTraverser;
+import org.openquark.cal.compiler.SourceModel.Expr;
+
+/**
+ * Splices source model inputs into an expression, replacing the unqualified
+ * variables that have the names of the inputs.
+ * <p>
+ * Source models are immutable, so only the expressions on the path from 
+ * the root to a replaced variable are copied.  Every other subtree is 
+ * shared with the original expression.  A first pass finds the expressions
+ * that contain a replaced variable, and the copy returns every other 
+ * expression as it is.  Expressions of the kinds that are not overridden 
+ * here are always copied, which is correct but does not share them.
+ */
+final class SourceModelSplicer extends SourceModelCopier<Void> {
+
+    /** the source models to splice in, by variable name */
+    private final Map<String, Expr> splices;
+    
+    /** the expressions that contain a variable to replace, used as an identity set */
+    private final Map<Expr, Expr> changed = new IdentityHashMap<Expr, Expr>();
+    
+    /**
+     * Finds the expressions that contain a variable to replace
+     */
+    private final class ChangeFinder extends SourceModelTraverser<Void, Void> {
+        
+        /** the listed expressions that enclose the current node, outermost first */
+        private final List<Expr> ancestors = new ArrayList<Expr>();
+        
+        @Override
+        public Void visit_Expr_Var(Expr.Var var, Void arg) {
+            if (replacement(var) != null) {
+                for (final Expr ancestor : ancestors) {
+                    changed.put(ancestor, ancestor);
+                }
+            }
+            return super.visit_Expr_Var(var, arg);
+        }
+        
+        @Override
+        public Void visit_Expr_Application(Expr.Application node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_Application(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_Parenthesized(Expr.Parenthesized node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_Parenthesized(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_Lambda(Expr.Lambda node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_Lambda(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_Let(Expr.Let node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_Let(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_Case(Expr.Case node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_Case(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_If(Expr.If node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_If(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_Tuple(Expr.Tuple node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_Tuple(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_List(Expr.List node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_List(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_Record(Expr.Record node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_Record(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_SelectRecordField(Expr.SelectRecordField node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_SelectRecordField(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_SelectDataConsField(Expr.SelectDataConsField node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_SelectDataConsField(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_ExprTypeSignature(Expr.ExprTypeSignature node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_ExprTypeSignature(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_UnaryOp_Negate(Expr.UnaryOp.Negate node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_UnaryOp_Negate(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_And(Expr.BinaryOp.And node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_And(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Or(Expr.BinaryOp.Or node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Or(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Equals(Expr.BinaryOp.Equals node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Equals(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_NotEquals(Expr.BinaryOp.NotEquals node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_NotEquals(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_LessThan(Expr.BinaryOp.LessThan node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_LessThan(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_LessThanEquals(Expr.BinaryOp.LessThanEquals node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_LessThanEquals(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_GreaterThan(Expr.BinaryOp.GreaterThan node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_GreaterThan(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_GreaterThanEquals(Expr.BinaryOp.GreaterThanEquals node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_GreaterThanEquals(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Add(Expr.BinaryOp.Add node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Add(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Subtract(Expr.BinaryOp.Subtract node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Subtract(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Multiply(Expr.BinaryOp.Multiply node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Multiply(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Divide(Expr.BinaryOp.Divide node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Divide(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Remainder(Expr.BinaryOp.Remainder node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Remainder(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Compose(Expr.BinaryOp.Compose node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Compose(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Apply(Expr.BinaryOp.Apply node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Apply(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Cons(Expr.BinaryOp.Cons node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Cons(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_Append(Expr.BinaryOp.Append node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_Append(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_BackquotedOperator_Var(Expr.BinaryOp.BackquotedOperator.Var node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_BackquotedOperator_Var(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visit_Expr_BinaryOp_BackquotedOperator_DataCons(Expr.BinaryOp.BackquotedOperator.DataCons node, Void arg) {
+            ancestors.add(node);
+            super.visit_Expr_BinaryOp_BackquotedOperator_DataCons(node, arg);
+            ancestors.remove(ancestors.size() - 1);
+            return null;
+        }
+    }
+    
+    private SourceModelSplicer(Map<String, Expr> splices) {
+        this.splices = splices;
+    }
+    
+    /**
+     * @param expr
+     * @param toSplice the variable names and the source models that replace
+     * them.  The first pair with a given name is used.
+     * @return the expression with the source models spliced in, or expr 
+     * itself if it contains none of the variables
+     */
+    static Expr splice(Expr expr, Pair<String, Expr>[] toSplice) {
+        if (toSplice.length == 0) {
+            return expr;
+        }
+        Map<String, Expr> splices = new HashMap<String, Expr>(toSplice.length * 2);
+        for (int cnt = toSplice.length - 1; cnt >= 0; cnt--) {
+            splices.put(toSplice[cnt].fst(), toSplice[cnt].snd());
+        }
+        SourceModelSplicer splicer = new SourceModelSplicer(splices);
+        expr.accept(splicer.new ChangeFinder(), null);
+        return (Expr) expr.accept(splicer, null);
+    }
+    
+    /**
+     * @param var
+     * @return the source model that replaces the variable, or null if it is
+     * not replaced.  Only unqualified variables are replaced, since a 
+     * qualified name can never be one of the input names.
+     */
+    private Expr replacement(Expr.Var var) {
+        if (var.getVarName().getModuleName() != null) {
+            return null;
+        }
+        return splices.get(var.getVarName().getUnqualifiedName());
+    }
+    
+    @Override
+    public Expr visit_Expr_Var(Expr.Var var, Void arg) {
+        Expr replacement = replacement(var);
+        return replacement == null ? var : replacement;
+    }
+    
+    @Override
+    public Expr visit_Expr_Application(Expr.Application node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_Application(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_Parenthesized(Expr.Parenthesized node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_Parenthesized(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_Lambda(Expr.Lambda node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_Lambda(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_Let(Expr.Let node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_Let(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_Case(Expr.Case node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_Case(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_If(Expr.If node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_If(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_Tuple(Expr.Tuple node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_Tuple(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_List(Expr.List node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_List(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_Record(Expr.Record node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_Record(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_SelectRecordField(Expr.SelectRecordField node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_SelectRecordField(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_SelectDataConsField(Expr.SelectDataConsField node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_SelectDataConsField(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_ExprTypeSignature(Expr.ExprTypeSignature node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_ExprTypeSignature(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_UnaryOp_Negate(Expr.UnaryOp.Negate node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_UnaryOp_Negate(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_And(Expr.BinaryOp.And node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_And(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Or(Expr.BinaryOp.Or node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Or(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Equals(Expr.BinaryOp.Equals node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Equals(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_NotEquals(Expr.BinaryOp.NotEquals node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_NotEquals(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_LessThan(Expr.BinaryOp.LessThan node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_LessThan(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_LessThanEquals(Expr.BinaryOp.LessThanEquals node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_LessThanEquals(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_GreaterThan(Expr.BinaryOp.GreaterThan node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_GreaterThan(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_GreaterThanEquals(Expr.BinaryOp.GreaterThanEquals node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_GreaterThanEquals(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Add(Expr.BinaryOp.Add node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Add(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Subtract(Expr.BinaryOp.Subtract node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Subtract(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Multiply(Expr.BinaryOp.Multiply node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Multiply(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Divide(Expr.BinaryOp.Divide node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Divide(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Remainder(Expr.BinaryOp.Remainder node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Remainder(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Compose(Expr.BinaryOp.Compose node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Compose(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Apply(Expr.BinaryOp.Apply node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Apply(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Cons(Expr.BinaryOp.Cons node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Cons(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_Append(Expr.BinaryOp.Append node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_Append(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_BackquotedOperator_Var(Expr.BinaryOp.BackquotedOperator.Var node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_BackquotedOperator_Var(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_BinaryOp_BackquotedOperator_DataCons(Expr.BinaryOp.BackquotedOperator.DataCons node, Void arg) {
+        return changed.containsKey(node) ? 
+                (Expr) super.visit_Expr_BinaryOp_BackquotedOperator_DataCons(node, arg) : node;
+    }
+
+    @Override
+    public Expr visit_Expr_DataCons(Expr.DataCons node, Void arg) {
+        return node;
+    }
+
+    @Override
+    public Expr visit_Expr_Unit(Expr.Unit node, Void arg) {
+        return node;
+    }
+
+    @Override
+    public Expr visit_Expr_Literal_Num(Expr.Literal.Num node, Void arg) {
+        return node;
+    }
+
+    @Override
+    public Expr visit_Expr_Literal_Double(Expr.Literal.Double node, Void arg) {
+        return node;
+    }
+
+    @Override
+    public Expr visit_Expr_Literal_Char(Expr.Literal.Char node, Void arg) {
+        return node;
+    }
+
+    @Override
+    public Expr visit_Expr_Literal_StringLit(Expr.Literal.StringLit node, Void arg) {
+        return node;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * SpliceCache.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openquark.cal.compiler.SourceModel.Expr;
+
+/**
+ * Remembers the work done for source model inputs, so that a program that
+ * passes the same <code>Expr</code> objects again does not pay for them
+ * twice.  Source models are immutable, so they are matched by identity
+ * rather than by rendering them as text.
+ * <p>
+ * Two things are kept: the source text of each input, which is part of the
+ * key of the compiled expression, and the expression after the inputs have
+ * been spliced into it.  Neither depends on the modules in the workspace,
+ * so they never become stale.  Both are bounded.
+ * <p>
+ * Each cache is a fixed table of slots chosen by hash, so lookups take no
+ * lock.  An entry replaces whatever was in its slot, and two threads that 
+ * store the same entry at once only repeat each other's work.
+ */
+final class SpliceCache {
+
+    /** the number of spliced expressions that are remembered */
+    private static final int SPLICED_SIZE = 64;
+    
+    /** the number of source texts that are remembered */
+    private static final int TEXT_SIZE = 256;
+
+    /**
+     * An expression with its source model inputs spliced in
+     */
+    private static final class Entry {
+        final String exprText;
+        final Pair<String, Expr>[] toSplice;
+        final Expr spliced;
+        
+        Entry(String exprText, Pair<String, Expr>[] toSplice, Expr spliced) {
+            this.exprText = exprText;
+            this.toSplice = toSplice;
+            this.spliced = spliced;
+        }
+        
+        boolean matches(String text, Pair<String, Expr>[] splices) {
+            if (toSplice.length != splices.length || !exprText.equals(text)) {
+                return false;
+            }
+            for (int cnt = 0; cnt < splices.length; cnt++) {
+                if (toSplice[cnt].snd() != splices[cnt].snd() || 
+                        !toSplice[cnt].fst().equals(splices[cnt].fst())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * The source text of a source model input
+     */
+    private static final class TextEntry {
+        final Expr expr;
+        final String text;
+        
+        TextEntry(Expr expr, String text) {
+            this.expr = expr;
+            this.text = text;
+        }
+    }
+    
+    private static final AtomicReferenceArray<Entry> entries = 
+        new AtomicReferenceArray<Entry>(SPLICED_SIZE);
+    
+    private static final AtomicReferenceArray<TextEntry> texts = 
+        new AtomicReferenceArray<TextEntry>(TEXT_SIZE);
+
+    private SpliceCache() { }
+    
+    /**
+     * @param exprText
+     * @param toSplice
+     * @return the slot of the spliced expression
+     */
+    private static int slot(String exprText, Pair<String, Expr>[] toSplice) {
+        int hash = exprText.hashCode();
+        for (final Pair<String, Expr> splice : toSplice) {
+            hash = hash * 31 + System.identityHashCode(splice.snd());
+        }
+        return (hash & 0x7fffffff) % SPLICED_SIZE;
+    }
+    
+    /**
+     * @param exprText the text of the expression
+     * @param toSplice the variable names and the source models that replace them
+     * @return the expression with the same source models spliced in, 
+     * or null if it is not remembered
+     */
+    static Expr getSpliced(String exprText, Pair<String, Expr>[] toSplice) {
+        Entry entry = entries.get(slot(exprText, toSplice));
+        return entry != null && entry.matches(exprText, toSplice) ? entry.spliced : null;
+    }
+    
+    /**
+     * Remembers an expression that has had its source model inputs spliced in
+     * 
+     * @param exprText the text of the expression
+     * @param toSplice the variable names and the source models that replace them
+     * @param spliced the resulting expression
+     */
+    static void putSpliced(String exprText, Pair<String, Expr>[] toSplice, 
+            Expr spliced) {
+        entries.set(slot(exprText, toSplice), new Entry(exprText, toSplice, spliced));
+    }
+    
+    /**
+     * @param expr a source model input
+     * @return the source text of the input, rendered only the first time 
+     * that this object is seen
+     */
+    static String sourceText(Expr expr) {
+        int slot = (System.identityHashCode(expr) & 0x7fffffff) % TEXT_SIZE;
+        TextEntry entry = texts.get(slot);
+        if (entry != null && entry.expr == expr) {
+            return entry.text;
+        }
+        String text = expr.toSourceText();
+        texts.set(slot, new TextEntry(expr, text));
+        return text;
+    }
+}
@@ -23,13 +23,11 @@ import java.util.List;
 import java.util.Map;
 
 import org.eclipse.jdt.core.JavaModelException;
-import org.openquark.cal.compiler.CompilerMessage;
 import org.openquark.cal.compiler.CompilerMessageLogger;
 import org.openquark.cal.compiler.MessageLogger;
 import org.openquark.cal.compiler.QualifiedName;
 import org.openquark.cal.compiler.SourceModelUtilities;
 import org.openquark.cal.compiler.SourceRange;
-import org.openquark.cal.compiler.CompilerMessage.Severity;
 import org.openquark.cal.compiler.SourceIdentifier.Category;
 import org.openquark.cal.compiler.SourceModel.Expr;
 import org.openquark.cal.compiler.SourceModel.FunctionDefn;
@@ -40,6 +38,7 @@ import org.openquark.cal.compiler.SourceModel.TopLevelSourceElement;
 import org.openquark.cal.compiler.SourceModel.TypeClassDefn;
 import org.openquark.cal.compiler.SourceModel.TypeConstructorDefn;
 import org.openquark.cal.eclipse.embedded.EmbeddedCALPlugin;
+import org.openquark.cal.eclipse.embedded.exported.Diagnostics;
 import org.openquark.cal.eclipse.embedded.exported.Pair;
 
 /**
@@ -128,7 +127,7 @@ public abstract class CodeAnalyzer {
             if (mod != null) {
                 referenceFinder.initialize(mod);
             }
-            outputMessages(messageLogger);
+            Diagnostics.report(messageLogger);
             stale = false;
         } catch (JavaModelException e) {
             e.printStackTrace();
@@ -150,7 +149,7 @@ public abstract class CodeAnalyzer {
         Expr expr = SourceModelUtilities.TextParsing
         .parseExprIntoSourceModel(calCode, messageLogger);
 
-        outputMessages(messageLogger);
+        Diagnostics.report(messageLogger);
 
         if (expr != null) {
             AnalysisResults unbound_imported
@@ -173,30 +172,13 @@ public abstract class CodeAnalyzer {
         Expr expr = SourceModelUtilities.TextParsing
         .parseExprIntoSourceModel(calCode, messageLogger);
 
-        outputMessages(messageLogger);
+        Diagnostics.report(messageLogger);
 
         AnalysisResults unbound_imported
             = referenceFinder.findAllIdentifiers(expr);
         return unbound_imported;
     }
 
-    /**
-     * notifies the programmer of any compiler messages for this analysis...
-     * for now just outputting to console, but what is the better way?
-     * @param messageLogger
-     */
-    private void outputMessages(CompilerMessageLogger messageLogger) {
-        if (messageLogger.getNMessages() > 0) {
-            for (final CompilerMessage message : messageLogger.getCompilerMessages()) {
-                if (message.getSeverity().compareTo(Severity.ERROR) >= 0) {
-                    System.err.println(message.getMessage());
-                } else {
-                    System.out.println(message.getMessage());
-                }
-            }
-        }
-    }
-    
     protected void setStale() {
         this.stale = true;
     }
@@ -190,6 +190,17 @@ public class CALExpressionEditorManager extends ContainedEditorManager {
         });
         useCalValue.setText("Use CAL_VALUE_OUTPUT_POLICY");
         
+        final MenuItem usePrepared = new MenuItem(m, SWT.CHECK);
+        usePrepared.setSelection(props.isUsingPreparedHandle());
+        usePrepared.addSelectionListener(new SelectionListener() {
+            public void widgetSelected(SelectionEvent e) {
+                props.setUsePreparedHandle(usePrepared.getSelection());
+                fireEditorChanged();
+            }
+            public void widgetDefaultSelected(SelectionEvent e) { }
+        });
+        usePrepared.setText("Compile once (static prepared expression)");
+        
         outputPolicyDropDown.setMenu(m);
         throwsExceptionCheck.setMenu(m);
         return m;
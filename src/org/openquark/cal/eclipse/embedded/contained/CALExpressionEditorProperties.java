@@ -17,17 +17,33 @@
  */
 package org.openquark.cal.eclipse.embedded.contained;
 
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IField;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
 import org.eclipse.jdt.core.dom.BooleanLiteral;
+import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
 import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.Modifier;
 import org.eclipse.jdt.core.dom.NumberLiteral;
+import org.eclipse.jdt.core.dom.SimpleName;
 import org.eclipse.jdt.core.dom.StringLiteral;
+import org.openquark.cal.eclipse.embedded.EmbeddedCALPlugin;
 import org.openquark.cal.eclipse.embedded.StringUtils;
 import org.openquark.cal.eclipse.embedded.analyzer.CodeAnalyzer;
 import org.openquark.cal.eclipse.embedded.analyzer.CodeAnalyzer.AnalysisResults;
@@ -39,6 +55,9 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
 
     // a null input policy will trigger input policy inference
     private static final String DEFAULT_INPUT_POLICY_STR = "null";
+    
+    // prefix of the static fields that hold prepared expressions
+    private static final String PREPARED_FIELD_PREFIX = "CAL_EXPR_";
 
     /** the output policy of this embedded editor */
     private String outputPolicyReference;
@@ -50,6 +69,42 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
     private boolean throwsException;
     
     private String moduleName;
+    
+    /**
+     * true if this editor is serialized as a call on a static final 
+     * PreparedExpression field, so that the expression is compiled only once.
+     * false if it is serialized as a call to evaluateExpression
+     */
+    private boolean usePreparedHandle;
+    
+    /**
+     * the declaration of the PreparedExpression field created by the most
+     * recent serialization, or null if it does not use a prepared handle.
+     * The field is added to the compilation unit in requiresImport.
+     */
+    private String preparedFieldDeclaration;
+    
+    /** the name of the field declared by preparedFieldDeclaration */
+    private String preparedFieldName;
+    
+    /** 
+     * the type that the field declared by preparedFieldDeclaration goes in: 
+     * the innermost type enclosing this editor that can have static fields
+     */
+    private IType preparedFieldType;
+    
+    /** true if preparedFieldDeclaration refers to InputPolicy */
+    private boolean preparedFieldUsesPolicies;
+    
+    /** 
+     * the name of the field that the serialization in the document uses, 
+     * or null if it does not use one.  It is deleted when the serialization
+     * moves to another field and nothing else refers to it.
+     */
+    private String installedFieldName;
+    
+    /** the type that declares installedFieldName */
+    private IType installedFieldType;
 
 
     public CALExpressionEditorProperties() {
@@ -57,6 +112,7 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
         outputPolicyReference = null;
         throwsException = false;
         moduleName = "";
+        usePreparedHandle = false;
     }
     
     /**
@@ -71,9 +127,25 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
         int numArgs = arguments.size();
         int nextArg = 0;
         
-        if (mi.getName().toString().equals(RunQuark.EVALUATE_EXPRESSION_THROWING)) {
+        String methodName = mi.getName().toString();
+        if (methodName.equals(RunQuark.EVALUATE_EXPRESSION_THROWING) || 
+                methodName.equals(RunQuark.EVALUATE_EXPRESSION_PREPARED_THROWING)) {
             throwsException = true;
         }
+        
+        // the first argument of a prepared expression is the field that 
+        // holds the handle.  it gets recreated on save.
+        if (methodName.equals(RunQuark.EVALUATE_EXPRESSION_PREPARED) || 
+                methodName.equals(RunQuark.EVALUATE_EXPRESSION_PREPARED_THROWING)) {
+            usePreparedHandle = true;
+            if (numArgs > nextArg) {
+                Expression expr = arguments.get(nextArg);
+                if (expr.getNodeType() == ASTNode.SIMPLE_NAME) {
+                    installedFieldName = ((SimpleName) expr).getIdentifier();
+                }
+            }
+            nextArg++;
+        }
 
         // get text
         if (numArgs > nextArg) {
@@ -157,24 +229,54 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
     }
 
     public String serializeEmbeddedEditor(ControlManager cm) {
+        Set<String> args = findArgs(cm.getContainingEditor().getAnalyzer());
+        String moduleName = cm.getModuleName();
+        
         StringBuffer sb = new StringBuffer();
-        sb.append(IEmbeddedCalConstants.EXPRESSION_EDITOR_NAME_START + 
-                (throwsException ? RunQuark.EVALUATE_EXPRESSION_THROWING : RunQuark.EVALUATE_EXPRESSION) + 
-                "(");
+        if (usePreparedHandle) {
+            sb.append(IEmbeddedCalConstants.EXPRESSION_EDITOR_NAME_START + 
+                    (throwsException ? RunQuark.EVALUATE_EXPRESSION_PREPARED_THROWING : 
+                        RunQuark.EVALUATE_EXPRESSION_PREPARED) + 
+                    "(");
+            
+            // the handle comes before all of the other arguments
+            CompilationUnit ast = cm.getResolvedAST();
+            int offset = cm.getResolvedOffset(this);
+            if (ast != null && offset >= 0) {
+                preparedFieldType = findEnclosingType(ast, offset);
+                createPreparedField(args, moduleName, findDeclaredClasses(ast, offset));
+            } else {
+                preparedFieldType = null;
+                createPreparedField(args, moduleName, null);
+            }
+            sb.append(preparedFieldName);
+            sb.append(", ");
+        } else {
+            preparedFieldDeclaration = null;
+            preparedFieldName = null;
+            preparedFieldType = null;
+            sb.append(IEmbeddedCalConstants.EXPRESSION_EDITOR_NAME_START + 
+                    (throwsException ? RunQuark.EVALUATE_EXPRESSION_THROWING : RunQuark.EVALUATE_EXPRESSION) + 
+                    "(");
+        }
 
         // the first argument is the text
         sb.append("\"" + StringUtils.escape(getCalContents()) + "\"");
         sb.append(", ");
 
-        // second argument is the input tuples
-        sb.append("new InputTuple[] { ");
-        Set<String> args = findArgs(cm.getContainingEditor().getAnalyzer());
+        // second argument is the input tuples, or just the values
+        // for a prepared expression
+        if (usePreparedHandle) {
+            sb.append("new Object[] { ");
+        } else {
+            sb.append("new InputTuple[] { ");
+        }
 
         if (args != null) {
             Iterator<String> argIter = args.iterator();
             while (argIter.hasNext()) {
                 String arg = argIter.next();
-                sb.append(createArg(arg));
+                sb.append(usePreparedHandle ? arg : createArg(arg));
                 if (argIter.hasNext()) {
                     sb.append(", ");
                 }
@@ -187,7 +289,6 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
 
         // the fourth arg is the module name that is associated 
         // with this file
-        String moduleName = cm.getModuleName();
         if (moduleName != null) {
             sb.append(", \"" + moduleName + "\"");
         } else {
@@ -217,6 +318,185 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
             sb.toString() + 
             IEmbeddedCalConstants.EMBEDDED_REGION_END;
     }
+    
+    /**
+     * creates the declaration of the static final field that holds the 
+     * prepared expression.  The name of the field is derived from its
+     * contents so that identical expressions share a field, and an edited
+     * expression gets a new one.
+     * 
+     * @param args the free variables of the expression, or null if it is not valid
+     * @param moduleName the module associated with this file, or null
+     * @param declaredClasses the classes that the declared types of the 
+     * variables fix, or null if they are not known.  Their input policies 
+     * are given explicitly, so that the expression can be compiled before 
+     * it is first invoked.  The policies of the other variables are inferred.
+     */
+    private void createPreparedField(Set<String> args, String moduleName, 
+            Map<String, String> declaredClasses) {
+        StringBuffer init = new StringBuffer();
+        init.append("RunQuark.prepare(");
+        init.append("\"" + StringUtils.escape(getCalContents()) + "\"");
+        init.append(", new String[] { ");
+        StringBuffer policies = new StringBuffer();
+        preparedFieldUsesPolicies = false;
+        if (args != null) {
+            Iterator<String> argIter = args.iterator();
+            while (argIter.hasNext()) {
+                String arg = argIter.next();
+                init.append("\"" + arg + "\"");
+                String declaredClass = declaredClasses == null ? null : declaredClasses.get(arg);
+                if (declaredClass != null) {
+                    policies.append("RunQuark.inputPolicyFor(" + declaredClass + ".class)");
+                    preparedFieldUsesPolicies = true;
+                } else {
+                    policies.append("null");
+                }
+                if (argIter.hasNext()) {
+                    init.append(", ");
+                    policies.append(", ");
+                }
+            }
+        }
+        init.append(" }, ");
+        if (preparedFieldUsesPolicies) {
+            init.append("new InputPolicy[] { " + policies + " }, ");
+        } else {
+            init.append("null, ");
+        }
+        init.append(outputPolicyReference);
+        if (moduleName != null) {
+            init.append(", \"" + moduleName + "\"");
+        } else {
+            init.append(", null");
+        }
+        init.append(")");
+        
+        String baseName = PREPARED_FIELD_PREFIX + 
+            Integer.toHexString(init.toString().hashCode()).toUpperCase();
+        // if preparedFieldType already has a field with the name but with a 
+        // different initializer, then a suffix is added to the name
+        IType type = preparedFieldType;
+        for (int suffix = 1; ; suffix++) {
+            preparedFieldName = suffix == 1 ? baseName : baseName + "_" + suffix;
+            preparedFieldDeclaration = "private static final PreparedExpression " + 
+                preparedFieldName + " = " + init + ";";
+            
+            // a different expression whose declaration hashes to the same name
+            // must not be shared
+            if (type == null || !type.getField(preparedFieldName).exists() || 
+                    isPreparedFieldDeclared(type.getField(preparedFieldName))) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Finds the variables in scope at an offset whose declared types fix the 
+     * class of their values: primitives, their wrappers, and String.  
+     * Inference gives every value of such a class the same input policy.
+     * 
+     * @param ast the resolved AST of the compilation unit
+     * @param offset
+     * @return the names of the classes, keyed by variable name
+     */
+    @SuppressWarnings("restriction")
+    private static Map<String, String> findDeclaredClasses(CompilationUnit ast, int offset) {
+        Map<String, String> declaredClasses = new HashMap<String, String>();
+        // ScopeAnalyzer is restricted
+        org.eclipse.jdt.internal.corext.dom.ScopeAnalyzer scopeAnalyzer = 
+            new org.eclipse.jdt.internal.corext.dom.ScopeAnalyzer(ast);
+        IBinding[] bindings = scopeAnalyzer.getDeclarationsInScope(offset, 
+                org.eclipse.jdt.internal.corext.dom.ScopeAnalyzer.VARIABLES);
+        for (final IBinding binding : bindings) {
+            if (binding.getKind() == IBinding.VARIABLE) {
+                String className = fixedClassName(((IVariableBinding) binding).getType());
+                if (className != null) {
+                    declaredClasses.put(binding.getName(), className);
+                }
+            }
+        }
+        return declaredClasses;
+    }
+    
+    /**
+     * Finds the innermost type declaration enclosing an offset that can 
+     * declare a private static field.  Inner classes and interfaces cannot, 
+     * so the search stops at the first one of them.
+     * 
+     * @param ast the resolved AST of the compilation unit
+     * @param offset
+     * @return the type, or null if no such type encloses the offset
+     */
+    private static IType findEnclosingType(CompilationUnit ast, int offset) {
+        IType enclosing = null;
+        List<?> declarations = ast.types();
+        while (declarations != null) {
+            List<?> members = null;
+            for (final Object declaration : declarations) {
+                if (!(declaration instanceof AbstractTypeDeclaration)) {
+                    continue;
+                }
+                AbstractTypeDeclaration typeDecl = (AbstractTypeDeclaration) declaration;
+                if (offset < typeDecl.getStartPosition() || 
+                        offset >= typeDecl.getStartPosition() + typeDecl.getLength()) {
+                    continue;
+                }
+                ITypeBinding binding = typeDecl.resolveBinding();
+                if (binding != null && !binding.isInterface() && 
+                        (binding.isTopLevel() || binding.isEnum() || 
+                                Modifier.isStatic(binding.getModifiers())) && 
+                        binding.getJavaElement() instanceof IType) {
+                    enclosing = (IType) binding.getJavaElement();
+                    members = typeDecl.bodyDeclarations();
+                }
+                break;
+            }
+            declarations = members;
+        }
+        return enclosing;
+    }
+    
+    /**
+     * @param type
+     * @return the name of the class that the type fixes, or null if values 
+     * of the type can have different classes.  Primitives keep their names
+     * and the other classes are in java.lang.
+     */
+    static String fixedClassName(ITypeBinding type) {
+        if (type.isPrimitive()) {
+            return type.getName().equals("void") ? null : type.getName();
+        }
+        String name = type.getQualifiedName();
+        if (name.equals("java.lang.String") || name.equals("java.lang.Integer") || 
+                name.equals("java.lang.Double") || name.equals("java.lang.Character") || 
+                name.equals("java.lang.Boolean") || name.equals("java.lang.Byte") || 
+                name.equals("java.lang.Float") || name.equals("java.lang.Long") || 
+                name.equals("java.lang.Short")) {
+            return type.getName();
+        }
+        return null;
+    }
+    
+    /**
+     * @param field
+     * @return true if the source of the field is preparedFieldDeclaration, 
+     * ignoring differences in white space
+     */
+    private boolean isPreparedFieldDeclared(IField field) {
+        try {
+            String source = field.getSource();
+            return source != null && normalizeWhitespace(source).equals(
+                    normalizeWhitespace(preparedFieldDeclaration));
+        } catch (JavaModelException e) {
+            EmbeddedCALPlugin.logError("Error reading field " + field.getElementName(), e);
+            return false;
+        }
+    }
+    
+    private static String normalizeWhitespace(String text) {
+        return text.trim().replaceAll("\\s+", " ");
+    }
 
     /**
      * returns all of the unbound arguments of the cal contents
@@ -264,6 +544,15 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
     public void setThrowsException(boolean throwsException) {
         this.throwsException = throwsException;
     }
+    
+    public boolean isUsingPreparedHandle() {
+        return usePreparedHandle;
+    }
+    
+    public void setUsePreparedHandle(boolean usePreparedHandle) {
+        this.usePreparedHandle = usePreparedHandle;
+        setDirty(true);
+    }
 
     /**
      * checks the output policy for a variety of standard imports
@@ -281,7 +570,82 @@ public class CALExpressionEditorProperties extends ContainedEditorProperties {
                 createStaticImport(unit, "org.openquark.cal.compiler.io.OutputPolicy." + outputPolicyReference);
             }
         }
-        createImport(unit, "org.openquark.cal.eclipse.embedded.exported.RunQuark.InputTuple");
+        if (usePreparedHandle) {
+            createImport(unit, "org.openquark.cal.eclipse.embedded.exported.PreparedExpression");
+            if (preparedFieldDeclaration != null) {
+                if (preparedFieldUsesPolicies) {
+                    createImport(unit, "org.openquark.cal.compiler.io.InputPolicy");
+                }
+                createPreparedField();
+            }
+        } else {
+            createImport(unit, "org.openquark.cal.eclipse.embedded.exported.RunQuark.InputTuple");
+        }
+        
+        // the serialization no longer refers to the old field
+        if (installedFieldName != null && installedFieldType != null && 
+                !(installedFieldName.equals(preparedFieldName) && 
+                        installedFieldType.equals(preparedFieldType))) {
+            deleteUnusedField(unit, installedFieldType, installedFieldName);
+        }
+        installedFieldName = preparedFieldName;
+        installedFieldType = preparedFieldType;
+    }
+    
+    /**
+     * adds the field holding the prepared expression to the type enclosing
+     * this editor, unless it is already there.
+     */
+    private void createPreparedField() {
+        IType type = preparedFieldType;
+        if (type != null && !type.getField(preparedFieldName).exists()) {
+            try {
+                type.createField(preparedFieldDeclaration, null, false, null);
+            } catch (JavaModelException e) {
+                EmbeddedCALPlugin.logError("Error creating field " + preparedFieldName, e);
+            }
+        }
+    }
+    
+    /**
+     * deletes a prepared expression field from a type of the compilation 
+     * unit, unless something other than its declaration refers to it.  
+     * Identical expressions share a field.
+     * 
+     * @param unit
+     * @param type the type that declares the field
+     * @param fieldName
+     */
+    private void deleteUnusedField(ICompilationUnit unit, IType type, final String fieldName) {
+        IField field = type.getField(fieldName);
+        if (!field.exists()) {
+            return;
+        }
+        
+        // the names are derived from hashes, so matching identifiers are 
+        // uses of the field and bindings are not needed.  Comments and 
+        // string literals are not names, so they are not counted.
+        ASTParser parser = ASTParser.newParser(AST.JLS3);
+        parser.setSource(unit);
+        final int[] numUses = new int[1];
+        parser.createAST(null).accept(new ASTVisitor() {
+            @Override
+            public boolean visit(SimpleName name) {
+                if (name.getIdentifier().equals(fieldName)) {
+                    numUses[0]++;
+                }
+                return false;
+            }
+        });
+        
+        // the declaration is one of the names
+        if (numUses[0] <= 1) {
+            try {
+                field.delete(false, null);
+            } catch (JavaModelException e) {
+                EmbeddedCALPlugin.logError("Error deleting field " + fieldName, e);
+            }
+        }
     }
     
     public String getModuleName() {
@@ -18,6 +18,9 @@
  */
 package org.openquark.cal.eclipse.embedded.contained;
 
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.events.SelectionListener;
@@ -28,6 +31,8 @@ import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.MenuItem;
+import org.openquark.cal.eclipse.embedded.EmbeddedCALPlugin;
+import org.openquark.cal.eclipse.embedded.containing.ContainingEditor;
 
 public class CALModuleEditorManager extends ContainedEditorManager {
 
@@ -37,6 +42,9 @@ public class CALModuleEditorManager extends ContainedEditorManager {
     
     private CALModuleEditorProperties props;
     
+    /** the editor that this module editor is embedded in */
+    private ContainingEditor containingEditor;
+    
     private static final Color green = 
         new Color(Display.getDefault(), new RGB(0, 255, 0));
     
@@ -104,6 +112,15 @@ public class CALModuleEditorManager extends ContainedEditorManager {
             public void widgetDefaultSelected(SelectionEvent e) { }
         });
         showAll.setText("Show expanded view");
+        
+        MenuItem generateFacade = new MenuItem(m, 0);
+        generateFacade.setText("&Generate Java Facade");
+        generateFacade.addSelectionListener(new SelectionListener() {
+            public void widgetSelected(SelectionEvent e) {
+                generateFacade();
+            }
+            public void widgetDefaultSelected(SelectionEvent e) { }
+        });
 //        moduleNameText.setMenu(m);
         return m;
     }
@@ -119,6 +136,45 @@ public class CALModuleEditorManager extends ContainedEditorManager {
         return p;
     }
     
+    @Override
+    public void initializeEditorContents(ContainingEditor containingEditor) {
+        this.containingEditor = containingEditor;
+        super.initializeEditorContents(containingEditor);
+    }
+    
+    /**
+     * writes a Java class that calls the public functions of this module 
+     * next to the file that contains this editor.  A file of the same name 
+     * that was not generated is only replaced if the user agrees.
+     */
+    private void generateFacade() {
+        if (containingEditor == null) {
+            return;
+        }
+        IFile file = (IFile) containingEditor.getEditorInput().getAdapter(IFile.class);
+        if (file == null) {
+            return;
+        }
+        ModuleFacadeGenerator generator = new ModuleFacadeGenerator(props);
+        try {
+            try {
+                generator.writeFacade(file, false);
+            } catch (CoreException e) {
+                if (e.getStatus().getCode() != ModuleFacadeGenerator.NOT_GENERATED) {
+                    throw e;
+                }
+                if (MessageDialog.openQuestion(containingEditor.getSite().getShell(), 
+                        "Replace Java facade", e.getStatus().getMessage() + 
+                        ".  Replace it with the generated facade?")) {
+                    generator.writeFacade(file, true);
+                }
+            }
+        } catch (CoreException e) {
+            EmbeddedCALPlugin.logError("Error generating the Java facade of " + 
+                    getModuleName(), e);
+        }
+    }
+    
     public String getModuleName() {
         return props.getModuleName();
     }
@@ -281,10 +281,15 @@ public abstract class ContainedEditorManager implements IAdaptable {
     private Map<String, IAction> actionMap = new HashMap<String, IAction>();
 
     private final static Color black = new Color(Display.getCurrent(), new RGB(0, 0, 0));
-    private final Clipboard cb = new Clipboard(Display.getCurrent());
-
-    private final Cursor arrowCursor = new Cursor(Display.getCurrent(), SWT.CURSOR_ARROW);
-    private final Cursor resizeCursor = new Cursor(Display.getCurrent(), SWT.CURSOR_SIZENWSE);
+    
+    // native resources are only allocated while the control exists
+    private Clipboard cb;
+    private Cursor arrowCursor;
+    private Cursor resizeCursor;
+    
+    /** the undo context of the containing editor that matches this editor's */
+    private ObjectUndoContext containingUndoContext;
+    private IUndoContext containedUndoContext;
 
 
     /**
@@ -307,6 +312,9 @@ public abstract class ContainedEditorManager implements IAdaptable {
      * @param containingEditor
      */
     public final void createControl(StyledText parent, ContainingEditor containingEditor) {
+        cb = new Clipboard(parent.getDisplay());
+        arrowCursor = new Cursor(parent.getDisplay(), SWT.CURSOR_ARROW);
+        resizeCursor = new Cursor(parent.getDisplay(), SWT.CURSOR_SIZENWSE);
         control = new Composite(parent, SWT.BORDER);
 
         // Source viewer
@@ -520,9 +528,9 @@ public abstract class ContainedEditorManager implements IAdaptable {
         viewer.configure(configuration);
         
         // set up the undo and redo context
-        IUndoContext containedUndoContext = 
+        containedUndoContext = 
             DocumentUndoManagerRegistry.getDocumentUndoManager(viewer.getDocument()).getUndoContext();
-        ObjectUndoContext containingUndoContext = 
+        containingUndoContext = 
             (ObjectUndoContext) DocumentUndoManagerRegistry.getDocumentUndoManager(
                     containingEditor.getContainingViewer().getDocument())
                     .getUndoContext();
@@ -633,11 +641,50 @@ public abstract class ContainedEditorManager implements IAdaptable {
 
 
     public void dispose() {
+        disposeControl();
+        listeners = null;
+    }
+    
+    /**
+     * @return true if the control of this editor has been created and 
+     * not disposed since
+     */
+    public boolean isControlCreated() {
+        return control != null;
+    }
+    
+    /**
+     * Disposes the control of this editor and everything that it uses, but
+     * keeps the properties and the listeners, so that the control can be
+     * created again later with {@link #createControl(StyledText, ContainingEditor)}
+     * and {@link #initializeEditorContents(ContainingEditor)}.  The contents
+     * are kept in the properties, but the undo history of the editor is lost.
+     */
+    public void disposeControl() {
+        if (control == null) {
+            return;
+        }
+        if (containingUndoContext != null) {
+            containingUndoContext.removeMatch(containedUndoContext);
+            containingUndoContext = null;
+            containedUndoContext = null;
+        }
+        if (configuration != null) {
+            viewer.unconfigure();
+            configuration = null;
+        }
         control.dispose();
         cb.dispose();
         arrowCursor.dispose();
         resizeCursor.dispose();
-        listeners = null;
+        control = null;
+        styledText = null;
+        viewer = null;
+        cb = null;
+        arrowCursor = null;
+        resizeCursor = null;
+        rememberedSelection = null;
+        actionMap.clear();
     }
 
     public void setLocation(Point location) {
@@ -0,0 +1,461 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved. 
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+
+/*
+ * EmbeddedRegionScanner.java
+ */
+package org.openquark.cal.eclipse.embedded.contained;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IPackageFragment;
+import org.eclipse.jdt.core.IPackageFragmentRoot;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.ArrayCreation;
+import org.eclipse.jdt.core.dom.ClassInstanceCreation;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.SimpleName;
+import org.eclipse.jdt.core.dom.StringLiteral;
+import org.openquark.cal.eclipse.embedded.exported.IEmbeddedCalConstants;
+import org.openquark.cal.eclipse.embedded.exported.RunQuark;
+
+/**
+ * Finds all of the embedded editors in the Java sources of a project, 
+ * without opening them in an editor, and builds the precompile manifest 
+ * from them.  RunQuark reads the manifest when it warms up, so that the 
+ * modules and expressions it lists are compiled before they are first used.
+ * <p>
+ * An expression is listed if the input policies of all of its inputs are 
+ * known before it runs.  This is the case for expressions without inputs, 
+ * and for expressions whose inputs have declared types that fix the class
+ * of their values, such as int or String, since every value of such a class
+ * is given the same inferred policy.
+ * <p>
+ * Every entry of the manifest records the compilation unit it was found in,
+ * so a manifest can be loaded back and updated by rescanning only the units
+ * that have changed.
+ */
+public class EmbeddedRegionScanner {
+
+    /**
+     * An expression to list in the manifest
+     */
+    private static final class ListedExpression {
+        final String text;
+        
+        /** the module name, or null for the default */
+        final String moduleName;
+        
+        /** the Java source that refers to the output policy, or null for the default */
+        final String outputPolicy;
+        
+        /** the names of the inputs, in the order they are passed */
+        final String[] varNames;
+        
+        /** the Java names of the classes of the inputs */
+        final String[] classNames;
+        
+        ListedExpression(String text, String moduleName, String outputPolicy, 
+                String[] varNames, String[] classNames) {
+            this.text = text;
+            this.moduleName = moduleName;
+            this.outputPolicy = outputPolicy;
+            this.varNames = varNames;
+            this.classNames = classNames;
+        }
+        
+        /**
+         * @return the text, module, output policy, and inputs, to remove duplicates
+         */
+        String key() {
+            StringBuffer key = new StringBuffer();
+            key.append(text).append('\0');
+            key.append(moduleName).append('\0');
+            key.append(outputPolicy);
+            for (int cnt = 0; cnt < varNames.length; cnt++) {
+                key.append('\0').append(varNames[cnt]).append(':').append(classNames[cnt]);
+            }
+            return key.toString();
+        }
+    }
+    
+    /**
+     * The modules and expressions found in one compilation unit
+     */
+    private static final class UnitEntries {
+        /** module texts, in the order they were found */
+        final Set<String> modules = new LinkedHashSet<String>();
+        
+        /** expressions by key, in the order they were found */
+        final Map<String, ListedExpression> expressions = 
+            new LinkedHashMap<String, ListedExpression>();
+        
+        boolean isEmpty() {
+            return modules.isEmpty() && expressions.isEmpty();
+        }
+    }
+    
+    private static final String[] NO_INPUTS = new String[0];
+    
+    /** the entries of each compilation unit, by the path of the unit */
+    private final Map<String, UnitEntries> units = new TreeMap<String, UnitEntries>();
+    
+    /**
+     * scans all of the compilation units in the source folders of the project
+     * @param project
+     * @throws JavaModelException
+     */
+    public void scan(IJavaProject project) throws JavaModelException {
+        for (final IPackageFragmentRoot root : project.getPackageFragmentRoots()) {
+            if (root.getKind() != IPackageFragmentRoot.K_SOURCE) {
+                continue;
+            }
+            for (final IJavaElement child : root.getChildren()) {
+                if (child instanceof IPackageFragment) {
+                    for (final ICompilationUnit unit : 
+                            ((IPackageFragment) child).getCompilationUnits()) {
+                        scan(unit);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * scans a compilation unit, replacing anything found in it before and 
+     * resolving the types of the inputs of its expressions.  Only units that
+     * contain embedded editors are parsed.
+     * @param unit
+     * @throws JavaModelException
+     */
+    public void scan(ICompilationUnit unit) throws JavaModelException {
+        String path = unitPath(unit);
+        units.remove(path);
+        String source = unit.getSource();
+        if (source == null || source.indexOf(IEmbeddedCalConstants.EMBEDDED_REGION_START) < 0) {
+            return;
+        }
+        ASTParser parser = ASTParser.newParser(AST.JLS3);
+        parser.setSource(unit);
+        parser.setResolveBindings(true);
+        final Map<Integer, MethodInvocation> invocations = new HashMap<Integer, MethodInvocation>();
+        parser.createAST(null).accept(new ASTVisitor() {
+            @Override
+            public boolean visit(MethodInvocation node) {
+                invocations.put(new Integer(node.getStartPosition()), node);
+                return true;
+            }
+        });
+        scan(path, source, invocations);
+    }
+    
+    /**
+     * scans the text of a single compilation unit, replacing anything found 
+     * in it before.  Only the expressions without inputs are found.
+     * @param path the path of the unit
+     * @param source
+     */
+    public void scan(String path, String source) {
+        units.remove(path);
+        if (source != null) {
+            scan(path, source, null);
+        }
+    }
+    
+    /**
+     * forgets everything found in a compilation unit, for instance because 
+     * it has been deleted
+     * @param path the path of the unit
+     */
+    public void remove(String path) {
+        units.remove(path);
+    }
+    
+    /**
+     * @param unit
+     * @return the path that identifies the unit in the manifest
+     */
+    public static String unitPath(ICompilationUnit unit) {
+        return unit.getPath().toPortableString();
+    }
+    
+    /**
+     * Loads the entries of a manifest written by {@link #toManifest()}, so 
+     * that only the units that have changed since need to be scanned.
+     * 
+     * @param manifest
+     * @return false if the manifest has entries that do not record their 
+     * compilation unit, so that the project must be scanned again
+     */
+    public boolean load(Properties manifest) {
+        units.clear();
+        for (int cnt = 0; manifest.getProperty("module." + cnt) != null; cnt++) {
+            String path = manifest.getProperty("module." + cnt + ".unit");
+            if (path == null) {
+                units.clear();
+                return false;
+            }
+            entries(path).modules.add(manifest.getProperty("module." + cnt));
+        }
+        for (int cnt = 0; manifest.getProperty("expression." + cnt) != null; cnt++) {
+            String prefix = "expression." + cnt;
+            String path = manifest.getProperty(prefix + ".unit");
+            if (path == null) {
+                units.clear();
+                return false;
+            }
+            List<String> varNames = new ArrayList<String>();
+            List<String> classNames = new ArrayList<String>();
+            for (int input = 0; manifest.getProperty(prefix + ".input." + input) != null; input++) {
+                varNames.add(manifest.getProperty(prefix + ".input." + input));
+                classNames.add(manifest.getProperty(prefix + ".input." + input + ".class"));
+            }
+            ListedExpression expr = new ListedExpression(manifest.getProperty(prefix), 
+                    manifest.getProperty(prefix + ".module"), 
+                    manifest.getProperty(prefix + ".outputPolicy"), 
+                    varNames.toArray(new String[varNames.size()]), 
+                    classNames.toArray(new String[classNames.size()]));
+            entries(path).expressions.put(expr.key(), expr);
+        }
+        return true;
+    }
+    
+    private UnitEntries entries(String path) {
+        UnitEntries entries = units.get(path);
+        if (entries == null) {
+            entries = new UnitEntries();
+            units.put(path, entries);
+        }
+        return entries;
+    }
+    
+    /**
+     * @param path the path of the unit
+     * @param source
+     * @param invocations the method invocations of the source with resolved 
+     * bindings, keyed by their offsets, or null if they are not known
+     */
+    private void scan(String path, String source, Map<Integer, MethodInvocation> invocations) {
+        UnitEntries entries = new UnitEntries();
+        int start = source.indexOf(IEmbeddedCalConstants.EMBEDDED_REGION_START);
+        while (start >= 0) {
+            int end = source.indexOf(IEmbeddedCalConstants.EMBEDDED_REGION_END, 
+                    start + IEmbeddedCalConstants.EMBEDDED_REGION_START.length());
+            if (end < 0) {
+                break;
+            }
+            end += IEmbeddedCalConstants.EMBEDDED_REGION_END.length();
+            
+            // the invocation follows the start marker
+            MethodInvocation bound = null;
+            if (invocations != null) {
+                int invocationStart = source.indexOf(
+                        IEmbeddedCalConstants.EXPRESSION_EDITOR_NAME_START, start);
+                if (invocationStart >= 0 && invocationStart < end) {
+                    bound = invocations.get(new Integer(invocationStart));
+                }
+            }
+            addRegion(entries, source.substring(start, end), bound);
+            start = source.indexOf(IEmbeddedCalConstants.EMBEDDED_REGION_START, end);
+        }
+        if (!entries.isEmpty()) {
+            units.put(path, entries);
+        }
+    }
+    
+    /**
+     * @param entries where the module or expression is added
+     * @param regionText
+     * @param bound the invocation of the region with resolved bindings, or null
+     */
+    private void addRegion(UnitEntries entries, String regionText, MethodInvocation bound) {
+        ASTNode node = ContainedEditorProperties.toASTNode(regionText);
+        if (node.getNodeType() != ASTNode.METHOD_INVOCATION) {
+            return;
+        }
+        MethodInvocation mi = (MethodInvocation) node;
+        String methodName = mi.getName().toString();
+        ContainedEditorProperties props = EditorManagerFactory.createProperties(mi);
+        if (props.getCalContents() == null || !props.isValid()) {
+            return;
+        }
+        
+        if (props instanceof CALModuleEditorProperties) {
+            entries.modules.add(props.getCalContents());
+            return;
+        }
+        
+        String[] varNames;
+        String[] classNames;
+        if (hasNoInputs(mi, methodName)) {
+            varNames = NO_INPUTS;
+            classNames = NO_INPUTS;
+        } else if (bound != null && bound.getName().toString().equals(methodName)) {
+            List<Expression> inputs = inputs(bound, methodName);
+            if (inputs == null) {
+                return;
+            }
+            varNames = new String[inputs.size()];
+            classNames = new String[inputs.size()];
+            for (int cnt = 0; cnt < varNames.length; cnt++) {
+                Expression input = inputs.get(cnt);
+                Expression value;
+                if (input.getNodeType() == ASTNode.CLASS_INSTANCE_CREATION) {
+                    // new InputTuple(value, null, "name").  An explicit policy 
+                    // can only be created by the application
+                    List<Expression> tupleArgs = arguments((ClassInstanceCreation) input);
+                    if (tupleArgs.size() != 3 || 
+                            tupleArgs.get(1).getNodeType() != ASTNode.NULL_LITERAL ||
+                            tupleArgs.get(2).getNodeType() != ASTNode.STRING_LITERAL) {
+                        return;
+                    }
+                    value = tupleArgs.get(0);
+                    varNames[cnt] = ((StringLiteral) tupleArgs.get(2)).getLiteralValue();
+                } else if (input.getNodeType() == ASTNode.SIMPLE_NAME) {
+                    // the values of a prepared expression are its variables
+                    value = input;
+                    varNames[cnt] = ((SimpleName) input).getIdentifier();
+                } else {
+                    return;
+                }
+                classNames[cnt] = value.resolveTypeBinding() == null ? null :
+                    CALExpressionEditorProperties.fixedClassName(value.resolveTypeBinding());
+                if (classNames[cnt] == null) {
+                    return;
+                }
+            }
+        } else {
+            return;
+        }
+        
+        CALExpressionEditorProperties exprProps = (CALExpressionEditorProperties) props;
+        String moduleName = exprProps.getModuleName();
+        ListedExpression expr = new ListedExpression(exprProps.getCalContents(), 
+                moduleName != null && moduleName.length() > 0 ? moduleName : null, 
+                exprProps.getOuputPolicyReference(), varNames, classNames);
+        if (!entries.expressions.containsKey(expr.key())) {
+            entries.expressions.put(expr.key(), expr);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static List<Expression> arguments(ClassInstanceCreation creation) {
+        return creation.arguments();
+    }
+    
+    /**
+     * @param mi an expression editor's method invocation
+     * @param methodName
+     * @return the elements of the array of inputs, or null if it is not an
+     * array creation
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Expression> inputs(MethodInvocation mi, String methodName) {
+        // prepared expressions have the handle as their first argument
+        int inputsArg = methodName.equals(RunQuark.EVALUATE_EXPRESSION_PREPARED) || 
+                methodName.equals(RunQuark.EVALUATE_EXPRESSION_PREPARED_THROWING) ? 2 : 1;
+        List<Expression> arguments = mi.arguments();
+        if (arguments.size() <= inputsArg) {
+            return null;
+        }
+        Expression inputs = arguments.get(inputsArg);
+        if (inputs.getNodeType() != ASTNode.ARRAY_CREATION) {
+            return null;
+        }
+        ArrayCreation creation = (ArrayCreation) inputs;
+        if (creation.getInitializer() == null) {
+            return null;
+        }
+        return creation.getInitializer().expressions();
+    }
+    
+    /**
+     * @param mi an expression editor's method invocation
+     * @param methodName
+     * @return true if the array of inputs is empty
+     */
+    private boolean hasNoInputs(MethodInvocation mi, String methodName) {
+        List<Expression> inputs = inputs(mi, methodName);
+        return inputs != null && inputs.isEmpty();
+    }
+    
+    /**
+     * @return the number of modules and expressions found so far
+     */
+    public int size() {
+        int size = 0;
+        for (final UnitEntries entries : units.values()) {
+            size += entries.modules.size() + entries.expressions.size();
+        }
+        return size;
+    }
+    
+    /**
+     * @return the contents of the precompile manifest, in the properties 
+     * file format read by RunQuark.  Each entry also records the path of 
+     * its compilation unit as <code>module.N.unit</code> or 
+     * <code>expression.N.unit</code>.
+     */
+    public byte[] toManifest() {
+        Properties manifest = new Properties();
+        int moduleCnt = 0;
+        int exprCnt = 0;
+        for (final Map.Entry<String, UnitEntries> unit : units.entrySet()) {
+            for (final String module : unit.getValue().modules) {
+                String prefix = "module." + moduleCnt++;
+                manifest.setProperty(prefix, module);
+                manifest.setProperty(prefix + ".unit", unit.getKey());
+            }
+            for (final ListedExpression expr : unit.getValue().expressions.values()) {
+                String prefix = "expression." + exprCnt++;
+                manifest.setProperty(prefix, expr.text);
+                manifest.setProperty(prefix + ".unit", unit.getKey());
+                if (expr.moduleName != null) {
+                    manifest.setProperty(prefix + ".module", expr.moduleName);
+                }
+                if (expr.outputPolicy != null) {
+                    manifest.setProperty(prefix + ".outputPolicy", expr.outputPolicy);
+                }
+                for (int input = 0; input < expr.varNames.length; input++) {
+                    manifest.setProperty(prefix + ".input." + input, expr.varNames[input]);
+                    manifest.setProperty(prefix + ".input." + input + ".class", expr.classNames[input]);
+                }
+            }
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            manifest.store(out, "Embedded CAL modules and expressions to compile at warm-up");
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,468 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved. 
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+
+/*
+ * ModuleFacadeGenerator.java
+ */
+package org.openquark.cal.eclipse.embedded.contained;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.JavaCore;
+import org.openquark.cal.compiler.Scope;
+import org.openquark.cal.compiler.SourceModelTraverser;
+import org.openquark.cal.compiler.SourceModelUtilities;
+import org.openquark.cal.compiler.SourceModel.FunctionDefn;
+import org.openquark.cal.compiler.SourceModel.FunctionTypeDeclaration;
+import org.openquark.cal.compiler.SourceModel.ModuleDefn;
+import org.openquark.cal.compiler.SourceModel.Parameter;
+import org.openquark.cal.compiler.SourceModel.TopLevelSourceElement;
+import org.openquark.cal.compiler.SourceModel.TypeExprDefn;
+import org.openquark.cal.compiler.SourceModel.TypeSignature;
+import org.openquark.cal.eclipse.embedded.EmbeddedCALPlugin;
+import org.openquark.cal.eclipse.embedded.StringUtils;
+
+/**
+ * Generates a Java class with one static method for each public function 
+ * of the module in a module editor.  Each method calls its function through
+ * a {@link org.openquark.cal.eclipse.embedded.exported.ModuleFunction}, so 
+ * calls from Java are type checked and skip expression parsing, compilation 
+ * and input policy inference.
+ * <p>
+ * Arguments and results of the CAL types Int, Double, Boolean, Char, Long, 
+ * Short, Byte, Float and String become the matching Java types.  All other 
+ * types are passed as Object with the default policies, which the declared 
+ * type of the function makes exact.  Functions without a type declaration, 
+ * and functions whose types are polymorphic, constrained, or take or return 
+ * functions, cannot be given exact policies and are skipped.
+ */
+public class ModuleFacadeGenerator {
+    
+    /** 
+     * the first line of every generated facade.  A file without it is not 
+     * replaced unless the caller asks for it.
+     */
+    public static final String GENERATED_MARKER = 
+        "// Generated from an embedded CAL module editor.  Do not edit.";
+    
+    /** 
+     * the code of the status thrown by {@link #writeFacade(IFile, boolean)} 
+     * when it will not replace a file that it did not generate 
+     */
+    public static final int NOT_GENERATED = 1;
+    
+    /**
+     * How a CAL type is passed to and from Java
+     */
+    private static final class JavaType {
+        /** the Java type in the method signature */
+        final String name;
+        
+        /** the boxed class returned by CAL, or null if no unboxing is needed */
+        final String boxed;
+        
+        /** the prefix of the policy constants, such as INT */
+        final String policy;
+        
+        JavaType(String name, String boxed, String policy) {
+            this.name = name;
+            this.boxed = boxed;
+            this.policy = policy;
+        }
+        
+        String inputPolicy() {
+            return "InputPolicy." + policy + "_INPUT_POLICY";
+        }
+        
+        String outputPolicy() {
+            return "OutputPolicy." + policy + "_OUTPUT_POLICY";
+        }
+        
+        String unbox(String expr) {
+            if (boxed == null) {
+                return name.equals("Object") ? expr : "(" + name + ") " + expr;
+            } else {
+                return "((" + boxed + ") " + expr + ")." + name + "Value()";
+            }
+        }
+    }
+    
+    private static final JavaType OBJECT_TYPE = new JavaType("Object", null, "DEFAULT");
+    
+    /** the Java types of the Prelude types, by unqualified name */
+    private static final Map<String, JavaType> preludeTypes = 
+        new HashMap<String, JavaType>();
+    static {
+        preludeTypes.put("Int", new JavaType("int", "Integer", "INT"));
+        preludeTypes.put("Double", new JavaType("double", "Double", "DOUBLE"));
+        preludeTypes.put("Boolean", new JavaType("boolean", "Boolean", "BOOLEAN"));
+        preludeTypes.put("Char", new JavaType("char", "Character", "CHAR"));
+        preludeTypes.put("Long", new JavaType("long", "Long", "LONG"));
+        preludeTypes.put("Short", new JavaType("short", "Short", "SHORT"));
+        preludeTypes.put("Byte", new JavaType("byte", "Byte", "BYTE"));
+        preludeTypes.put("Float", new JavaType("float", "Float", "FLOAT"));
+        preludeTypes.put("String", new JavaType("String", null, "STRING"));
+    }
+    
+    private static final Set<String> javaKeywords = new HashSet<String>();
+    static {
+        String[] keywords = { "abstract", "assert", "boolean", "break", 
+                "byte", "case", "catch", "char", "class", "const", "continue", 
+                "default", "do", "double", "else", "enum", "extends", "false", 
+                "final", "finally", "float", "for", "goto", "if", "implements", 
+                "import", "instanceof", "int", "interface", "long", "native", 
+                "new", "null", "package", "private", "protected", "public", 
+                "return", "short", "static", "strictfp", "super", "switch", 
+                "synchronized", "this", "throw", "throws", "transient", "true", 
+                "try", "void", "volatile", "while" };
+        for (final String keyword : keywords) {
+            javaKeywords.add(keyword);
+        }
+    }
+    
+    private final CALModuleEditorProperties props;
+    
+    /** the public functions that could not be given a method */
+    private final List<String> skipped = new ArrayList<String>();
+    
+    private String className;
+    
+    public ModuleFacadeGenerator(CALModuleEditorProperties props) {
+        this.props = props;
+    }
+    
+    /**
+     * @return the name of the class generated by the last call to 
+     * {@link #generate(String)}, which is the last component of the module 
+     * name followed by Facade, or null if nothing was generated
+     */
+    public String getClassName() {
+        return className;
+    }
+    
+    /**
+     * @return the public functions that were skipped by the last call to 
+     * {@link #generate(String)}, because they cannot be given exact policies
+     */
+    public List<String> getSkippedFunctions() {
+        return skipped;
+    }
+    
+    /**
+     * @param packageName the package of the generated class, or the empty
+     * string for the default package
+     * @return the source of the facade class, or null if the contents of 
+     * the module editor are not a valid module
+     */
+    public String generate(String packageName) {
+        skipped.clear();
+        className = null;
+        ModuleDefn module = SourceModelUtilities.TextParsing
+                .parseModuleDefnIntoSourceModel(props.getCalContents());
+        if (module == null) {
+            return null;
+        }
+        String moduleName = module.getModuleName().toSourceText();
+        
+        // the declared type of each function
+        Map<String, TypeSignature> signatures = new HashMap<String, TypeSignature>();
+        for (final TopLevelSourceElement topLevel : module.getTopLevelDefns()) {
+            if (topLevel instanceof FunctionTypeDeclaration) {
+                FunctionTypeDeclaration declaration = (FunctionTypeDeclaration) topLevel;
+                signatures.put(declaration.getFunctionName(), declaration.getDeclaredType());
+            }
+        }
+        
+        className = javaIdentifier(moduleName.substring(
+                moduleName.lastIndexOf('.') + 1)) + "Facade";
+        StringBuffer sb = new StringBuffer();
+        sb.append(GENERATED_MARKER + "\n");
+        if (packageName.length() > 0) {
+            sb.append("package " + packageName + ";\n\n");
+        }
+        sb.append("import org.openquark.cal.compiler.io.InputPolicy;\n");
+        sb.append("import org.openquark.cal.compiler.io.OutputPolicy;\n");
+        sb.append("import org.openquark.cal.eclipse.embedded.exported.ModuleFunction;\n");
+        sb.append("import org.openquark.cal.eclipse.embedded.exported.RunQuark;\n");
+        sb.append("import org.openquark.cal.runtime.CALExecutorException;\n\n");
+        sb.append("/**\n");
+        sb.append(" * Calls the public functions of the CAL module " + moduleName + ".\n");
+        sb.append(" * <p>\n");
+        sb.append(" * Generated from an embedded module editor.  Changes are lost when it\n");
+        sb.append(" * is generated again.\n");
+        sb.append(" */\n");
+        sb.append("public final class " + className + " {\n\n");
+        sb.append("    public static final String MODULE_NAME = \"" + moduleName + "\";\n\n");
+        sb.append("    private static final String MODULE_TEXT = \"" + 
+                StringUtils.escape(props.getCalContents()) + "\";\n\n");
+        sb.append("    static {\n");
+        sb.append("        RunQuark.declareModule(MODULE_TEXT, MODULE_NAME, 0, 0, true, false);\n");
+        sb.append("    }\n\n");
+        sb.append("    private " + className + "() { }\n");
+        
+        for (final TopLevelSourceElement topLevel : module.getTopLevelDefns()) {
+            if (topLevel instanceof FunctionDefn && 
+                    ((FunctionDefn) topLevel).getScope() == Scope.PUBLIC) {
+                FunctionDefn function = (FunctionDefn) topLevel;
+                if (!appendMethod(sb, function, signatures.get(function.getName()))) {
+                    skipped.add(function.getName());
+                }
+            }
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+    
+    /**
+     * Writes the facade class next to the Java file that contains the module
+     * editor, replacing any facade that was generated before.
+     * 
+     * @param containingFile the Java file that contains the module editor
+     * @param replaceAny true to replace an existing file even if it does 
+     * not start with {@link #GENERATED_MARKER}
+     * @return the facade file, or null if the module editor does not 
+     * contain a valid module
+     * @throws CoreException if the file cannot be written, or with the code
+     * {@link #NOT_GENERATED} if the file exists, was not generated, and 
+     * replaceAny is false
+     */
+    public IFile writeFacade(IFile containingFile, boolean replaceAny) throws CoreException {
+        String packageName = "";
+        IJavaElement unit = JavaCore.create(containingFile);
+        if (unit != null && unit.getParent() != null && 
+                unit.getParent().getElementType() == IJavaElement.PACKAGE_FRAGMENT) {
+            packageName = unit.getParent().getElementName();
+        }
+        String source = generate(packageName);
+        if (source == null) {
+            return null;
+        }
+        
+        IFile facade = containingFile.getParent().getFile(new Path(className + ".java"));
+        ByteArrayInputStream contents;
+        try {
+            contents = new ByteArrayInputStream(source.getBytes(containingFile.getCharset()));
+        } catch (UnsupportedEncodingException e) {
+            contents = new ByteArrayInputStream(source.getBytes());
+        }
+        if (facade.exists()) {
+            if (!replaceAny && !isGenerated(facade)) {
+                throw new CoreException(new Status(IStatus.ERROR, EmbeddedCALPlugin.PLUGIN_ID, 
+                        NOT_GENERATED, facade.getFullPath() + 
+                        " was not generated from a module editor", null));
+            }
+            facade.setContents(contents, true, true, null);
+        } else {
+            facade.create(contents, true, null);
+        }
+        
+        if (!skipped.isEmpty()) {
+            EmbeddedCALPlugin.logWarning("Functions without exact types were left " +
+                    "out of " + facade.getName() + ": " + skipped, null);
+        }
+        return facade;
+    }
+    
+    /**
+     * @param file
+     * @return true if the file starts with {@link #GENERATED_MARKER}
+     * @throws CoreException
+     */
+    private static boolean isGenerated(IFile file) throws CoreException {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    file.getContents(true), file.getCharset()));
+            try {
+                String firstLine = reader.readLine();
+                return firstLine != null && firstLine.trim().equals(GENERATED_MARKER);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Appends the handle and the method that call a function
+     * 
+     * @param sb
+     * @param function
+     * @param signature the declared type of the function, or null if it has none
+     * @return false if the function cannot be given exact policies
+     */
+    private boolean appendMethod(StringBuffer sb, FunctionDefn function, 
+            TypeSignature signature) {
+        if (signature == null || signature.getNConstraints() > 0 || 
+                isPolymorphic(signature.getTypeExprDefn())) {
+            return false;
+        }
+        
+        // split the type into the types of the arguments and the result
+        List<JavaType> argTypes = new ArrayList<JavaType>();
+        TypeExprDefn type = unparenthesize(signature.getTypeExprDefn());
+        while (type instanceof TypeExprDefn.Function) {
+            JavaType argType = javaType(((TypeExprDefn.Function) type).getDomain());
+            if (argType == null) {
+                return false;
+            }
+            argTypes.add(argType);
+            type = unparenthesize(((TypeExprDefn.Function) type).getCodomain());
+        }
+        JavaType resultType = javaType(type);
+        if (resultType == null) {
+            return false;
+        }
+        
+        String[] argNames = argumentNames(function, argTypes.size());
+        String methodName = javaIdentifier(function.getName());
+        String handleName = methodName + "Function";
+        
+        sb.append("\n");
+        sb.append("    private static final ModuleFunction " + handleName + 
+                " = RunQuark.prepareFunction(MODULE_NAME, \"" + function.getName() + 
+                "\",\n            new InputPolicy[] {");
+        for (int cnt = 0; cnt < argTypes.size(); cnt++) {
+            sb.append(cnt == 0 ? " " : ", ");
+            sb.append(argTypes.get(cnt).inputPolicy());
+        }
+        sb.append(argTypes.isEmpty() ? "}, " : " }, ");
+        sb.append(resultType.outputPolicy() + ");\n\n");
+        
+        sb.append("    /**\n");
+        sb.append("     * Calls <code>" + function.getName() + " :: " + 
+                escapeHtml(signature.toSourceText()) + "</code>\n");
+        sb.append("     */\n");
+        sb.append("    public static " + resultType.name + " " + methodName + "(");
+        for (int cnt = 0; cnt < argTypes.size(); cnt++) {
+            if (cnt > 0) {
+                sb.append(", ");
+            }
+            sb.append(argTypes.get(cnt).name + " " + argNames[cnt]);
+        }
+        sb.append(") throws CALExecutorException {\n");
+        StringBuffer call = new StringBuffer(handleName + ".invokeThrowing(");
+        for (int cnt = 0; cnt < argNames.length; cnt++) {
+            if (cnt > 0) {
+                call.append(", ");
+            }
+            call.append(argNames[cnt]);
+        }
+        call.append(")");
+        sb.append("        return " + resultType.unbox(call.toString()) + ";\n");
+        sb.append("    }\n");
+        return true;
+    }
+    
+    /**
+     * @param type
+     * @return the Java type that a CAL type is passed as, or null if it is 
+     * a function type
+     */
+    private static JavaType javaType(TypeExprDefn type) {
+        type = unparenthesize(type);
+        if (type instanceof TypeExprDefn.Function) {
+            return null;
+        } else if (type instanceof TypeExprDefn.TypeCons) {
+            TypeExprDefn.TypeCons cons = (TypeExprDefn.TypeCons) type;
+            if (cons.getTypeConsName().getModuleName() == null || 
+                    cons.getTypeConsName().getModuleName().toSourceText().equals("Cal.Core.Prelude")) {
+                JavaType javaType = preludeTypes.get(cons.getTypeConsName().getUnqualifiedName());
+                if (javaType != null) {
+                    return javaType;
+                }
+            }
+        }
+        return OBJECT_TYPE;
+    }
+    
+    private static TypeExprDefn unparenthesize(TypeExprDefn type) {
+        while (type instanceof TypeExprDefn.Parenthesized) {
+            type = ((TypeExprDefn.Parenthesized) type).getTypeExprDefn();
+        }
+        return type;
+    }
+    
+    /**
+     * @param type
+     * @return true if the type contains a type variable
+     */
+    private static boolean isPolymorphic(TypeExprDefn type) {
+        final boolean[] found = { false };
+        type.accept(new SourceModelTraverser<Void, Void>() {
+            @Override
+            public Void visit_TypeExprDefn_TypeVar(TypeExprDefn.TypeVar var, Void arg) {
+                found[0] = true;
+                return null;
+            }
+        }, null);
+        return found[0];
+    }
+    
+    /**
+     * @param function
+     * @param arity the number of arguments in the type of the function
+     * @return the names of the parameters of the function if it declares
+     * one for each argument, or generated names otherwise
+     */
+    private static String[] argumentNames(FunctionDefn function, int arity) {
+        String[] names = new String[arity];
+        Parameter[] params = function instanceof FunctionDefn.Algebraic ? 
+                ((FunctionDefn.Algebraic) function).getParameters() : null;
+        Set<String> used = new HashSet<String>();
+        for (int cnt = 0; cnt < arity; cnt++) {
+            String name = params != null && params.length == arity ? 
+                    javaIdentifier(params[cnt].getName()) : "arg" + cnt;
+            if (!used.add(name)) {
+                name = name + cnt;
+                used.add(name);
+            }
+            names[cnt] = name;
+        }
+        return names;
+    }
+    
+    /**
+     * @param calName
+     * @return the name with characters that are not allowed in Java 
+     * identifiers replaced, and a suffix if it is a Java keyword
+     */
+    private static String javaIdentifier(String calName) {
+        StringBuffer sb = new StringBuffer(calName.length());
+        for (int cnt = 0; cnt < calName.length(); cnt++) {
+            char c = calName.charAt(cnt);
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        String name = sb.toString();
+        return javaKeywords.contains(name) ? name + "_" : name;
+    }
+    
+    private static String escapeHtml(String text) {
+        return text.replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll(">", "&gt;");
+    }
+}
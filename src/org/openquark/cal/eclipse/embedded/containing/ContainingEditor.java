@@ -208,7 +208,7 @@ public class ContainingEditor extends CompilationUnitEditor {
         @Override
         public void setSelectedRange(int selectionOffset, int selectionLength) {
             super.setSelectedRange(selectionOffset, selectionLength);
-            controlManager.paint(EMBEDDED_REPAINT);
+            controlManager.scheduleRepaint(EMBEDDED_REPAINT);
         }
         
     }
@@ -478,7 +478,7 @@ public class ContainingEditor extends CompilationUnitEditor {
                     case SWT.PAGE_DOWN:
                     case SWT.HOME:
                     case SWT.END:
-                        controlManager.paint(EMBEDDED_REPAINT);
+                        controlManager.scheduleRepaint(EMBEDDED_REPAINT);
                         break;
                         
                     case SWT.ARROW_UP:
@@ -503,7 +503,7 @@ public class ContainingEditor extends CompilationUnitEditor {
         JavaOutlinePage outline = (JavaOutlinePage) getAdapter(IContentOutlinePage.class);
         outline.addPostSelectionChangedListener(new ISelectionChangedListener() {
             public void selectionChanged(SelectionChangedEvent event) {
-                controlManager.paint(EMBEDDED_REPAINT);
+                controlManager.scheduleRepaint(EMBEDDED_REPAINT);
             }
         });
         
@@ -511,7 +511,7 @@ public class ContainingEditor extends CompilationUnitEditor {
         if (verticalBar != null) {
             verticalBar.addListener(SWT.Selection, new Listener() {
                 public void handleEvent(Event event) {
-                    controlManager.paint(EMBEDDED_REPAINT);
+                    controlManager.scheduleRepaint(EMBEDDED_REPAINT);
                 }
             });
         }
@@ -519,7 +519,7 @@ public class ContainingEditor extends CompilationUnitEditor {
         if (horizontalBar != null) {
             horizontalBar.addListener(SWT.Selection, new Listener() {
                 public void handleEvent(Event event) {
-                    controlManager.paint(EMBEDDED_REPAINT);
+                    controlManager.scheduleRepaint(EMBEDDED_REPAINT);
                 }
             });
         }
@@ -541,8 +541,8 @@ public class ContainingEditor extends CompilationUnitEditor {
 //                        IRegion end = doc.getLineInformationOfOffset(event.getOffset() + event.getLength());
 //                        controlManager.generateControls(start.getOffset(), start.getLength());
                         
-                        controlManager.generateControls(de.fOffset, de.getText().length());
-                        controlManager.paint(IPainter.TEXT_CHANGE);
+                        controlManager.generateChangedControls(de.fOffset, de.getText().length());
+                        controlManager.scheduleRepaint(IPainter.TEXT_CHANGE);
 //                    } catch (BadLocationException e) {
 //                        EmbeddedCALPlugin.logError("Error generating controls after text changed", e);
 //                    }
@@ -656,7 +656,7 @@ public class ContainingEditor extends CompilationUnitEditor {
             int revealStart, int revealLength) {
         super.selectAndReveal(selectionStart, selectionLength, revealStart,
                 revealLength);
-        controlManager.paint(EMBEDDED_REPAINT);
+        controlManager.scheduleRepaint(EMBEDDED_REPAINT);
     }
     
     
@@ -30,22 +30,28 @@ import static org.eclipse.ui.texteditor.ITextEditorActionDefinitionIds.TEXT_STAR
 import static org.eclipse.ui.texteditor.ITextEditorActionDefinitionIds.WORD_NEXT;
 import static org.eclipse.ui.texteditor.ITextEditorActionDefinitionIds.WORD_PREVIOUS;
 
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.ui.actions.IJavaEditorActionDefinitionIds;
 import org.eclipse.jface.action.IAction;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.BadPositionCategoryException;
 import org.eclipse.jface.text.DefaultPositionUpdater;
+import org.eclipse.jface.text.DocumentPartitioningChangedEvent;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentExtension3;
+import org.eclipse.jface.text.IDocumentPartitioningListenerExtension2;
 import org.eclipse.jface.text.IPaintPositionManager;
 import org.eclipse.jface.text.IPainter;
 import org.eclipse.jface.text.IPositionUpdater;
@@ -61,6 +67,7 @@ import org.eclipse.jface.text.rules.IToken;
 import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.text.source.projection.ProjectionViewer;
+import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyleRange;
 import org.eclipse.swt.custom.StyledText;
 import org.eclipse.swt.graphics.Font;
@@ -70,6 +77,8 @@ import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
 import org.eclipse.text.undo.DocumentUndoEvent;
 import org.eclipse.text.undo.DocumentUndoManager;
 import org.eclipse.text.undo.IDocumentUndoListener;
@@ -97,8 +106,8 @@ import org.openquark.cal.eclipse.embedded.exported.IEmbeddedCalConstants;
  * This class creates and manages the positions of the contained editors in the 
  * containing editor
  * <p>
- * The field editorPositionMap maps an contained editor to a position 
- * (offset and length) in the containing editor.
+ * The field editorPositions maps an contained editor to a position 
+ * (offset and length) in the containing editor, and back.
  */
 public class ControlManager implements IPainter, ITextPresentationListener, IContainedEditorListener {
 
@@ -208,6 +217,21 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
     }
     
     
+    /**
+     * Remembers the regions in which the partitioner has found contained 
+     * editor partitions to change, so that only the editors there need 
+     * to be regenerated.
+     */
+    class PartitioningListener implements IDocumentPartitioningListenerExtension2 {
+        public void documentPartitioningChanged(DocumentPartitioningChangedEvent event) {
+            IRegion changed = event.getChangedRegion(ContainingEditorScanner.CONTAINED_EDITOR);
+            if (changed != null) {
+                changedPartitions = union(changedPartitions, changed);
+            }
+        }
+        public void documentPartitioningChanged(IDocument document) { }
+    }
+    
     //delete me
     class UndoListener implements IDocumentUndoListener {
         public void documentUndoNotification(DocumentUndoEvent event) {
@@ -216,7 +240,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
                 // does this event look like the undoing of an embedded editor?
                 if (event.getText().startsWith(IEmbeddedCalConstants.EMBEDDED_REGION_START) &&
                         event.getText().endsWith(IEmbeddedCalConstants.EMBEDDED_REGION_END)) {
-                    paint(ContainingEditor.EMBEDDED_REPAINT);   
+                    scheduleRepaint(ContainingEditor.EMBEDDED_REPAINT);
                 }
             }
         }
@@ -234,15 +258,73 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
     private final IDocument doc;
     private final StyledText styledText;
     private IPaintPositionManager ppManager;
-    private Map<ContainedEditorManager, Position> editorPositionMap = new HashMap<ContainedEditorManager, Position>();
+    private final PartitioningListener partitioningListener = new PartitioningListener();
+    private final EditorPositions editorPositions = new EditorPositions();
     private Map<ContainedEditorManager, EmbeddedAnnotation> editorAnnotationMap = new HashMap<ContainedEditorManager, EmbeddedAnnotation>();
     
+    /**
+     * the editors whose controls exist but are scrolled out of view, least 
+     * recently visible first.  At most MAX_HIDDEN_CONTROLS of them are kept,
+     * so that scrolling back and forth does not recreate them each time.
+     */
+    private final LinkedList<ContainedEditorManager> hiddenEditors = 
+        new LinkedList<ContainedEditorManager>();
+    private static final int MAX_HIDDEN_CONTROLS = 16;
+    
+    /**
+     * the editors that were in view at the last paint, with the locations 
+     * their controls were placed at, or null if they are folded
+     */
+    private Map<ContainedEditorManager, Point> shownEditors = 
+        new HashMap<ContainedEditorManager, Point>();
+    
+    /** 
+     * true if nothing but the scroll position has changed since the last 
+     * paint, so the controls that stay in view can be moved by the scroll delta
+     */
+    private boolean layoutValid = false;
+    private int lastTopPixel;
+    private int lastHorizontalPixel;
+    
+    /**
+     * Repaints requested through scheduleRepaint are coalesced so that at 
+     * most one layout pass is done per frame.
+     */
+    private static final int FRAME_MILLIS = 16;
+    private boolean layoutDirty = false;
+    private boolean repaintScheduled = false;
+    private long lastPaintTime = 0;
+    private int mergedRepaints = 0;
+    private final Runnable scheduledRepaint = new Runnable() {
+        public void run() {
+            repaintScheduled = false;
+            if (layoutDirty && !styledText.isDisposed()) {
+                paint(ContainingEditor.EMBEDDED_REPAINT);
+            }
+        }
+    };
+    
     private CALModuleEditorManager moduleEditor;  // should have at most one module editor
     private ContainedEditorManager currentlyActiveEditor = null;
     private UndoListener undoListener;
     
     private IAnnotationModel annotationModel;
     
+    /**
+     * the region of the document whose contained editor partitions have 
+     * changed since the controls were last generated, or null if none have
+     */
+    private IRegion changedPartitions = null;
+    
+    /**
+     * true while saveAllEditors is running.  The editors it saves share 
+     * savePassAST, and savePassOffsets holds their offsets in it.  Both are 
+     * null until an editor asks for the AST.
+     */
+    private boolean savingAllEditors = false;
+    private CompilationUnit savePassAST;
+    private Map<ContainedEditorProperties, Integer> savePassOffsets;
+    
     /**
      * Creates a new Control manager for the given containing editor
      * @param embeddedEditor
@@ -255,6 +337,12 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
         this.styledText = styledText;
         this.doc = doc;
 
+        // more of the document may be visible, so more controls may be needed
+        styledText.addListener(SWT.Resize, new Listener() {
+            public void handleEvent(Event event) {
+                scheduleRepaint(TEXT_CHANGE);
+            }
+        });
     }
 
     void initializeAnnotationModel() {
@@ -289,6 +377,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
 
         ((IDocumentExtension3) doc).setDocumentPartitioner(
                 ContainingEditorScanner.CONTAINED_EDITOR, partitioner);
+        doc.addDocumentPartitioningListener(partitioningListener);
 
         if (viewer instanceof ITextViewerExtension4) {
             ((ITextViewerExtension4) viewer).addTextPresentationListener(this);
@@ -307,6 +396,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
     public void setPositionManager(IPaintPositionManager manager) {
         // ignore the passed in position manager
         this.ppManager = new ControlPositionManager(doc);
+        editorPositions.install(doc);
         this.containingEditor.getPaintManager().inputDocumentChanged(null, doc);
     }
 
@@ -318,15 +408,53 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
         return generateControls(0, doc.getLength());
     }
     
+    /**
+     * Brings the contained editors up to date after a document change.  Only
+     * the editors whose partitions have changed, or that overlap the changed
+     * text, are created, restyled or removed.
+     * @param offset the offset of the changed text
+     * @param length the length of the changed text
+     * @return true if there are contained editors in the changed region
+     */
+    boolean generateChangedControls(int offset, int length) {
+        IRegion dirty = union(changedPartitions, new Region(offset, length));
+        changedPartitions = null;
+        return generateControls(dirty.getOffset(), dirty.getLength());
+    }
+    
+    /**
+     * Generates the controls for the contained editors in the given range, 
+     * widened to cover the editors it touches.  Editors in the range that 
+     * are no longer backed by a contained editor partition are removed.
+     * The style ranges of all of the editors are applied in a single 
+     * text presentation.
+     * @param start
+     * @param length
+     * @return true if there are contained editors in the range
+     */
     boolean generateControls(int start, int length) {
 
         // if null then the control manager is not initialized
         if (annotationModel == null) return false;
         
-        // set up a scan for the entire document.
-        scanner.setPartialRange(doc, start, length, IDocument.DEFAULT_CONTENT_TYPE, start);
+        // an empty range still touches the editor that encloses it
+        List<ContainedEditorManager> existing = 
+            editorPositions.findIntersecting(start, Math.max(length, 1));
+        int end = start + length;
+        for (final ContainedEditorManager c : existing) {
+            Position p = editorPositions.get(c);
+            start = Math.min(start, p.offset);
+            end = Math.max(end, p.offset + p.length);
+        }
+        end = Math.min(end, doc.getLength());
+        start = Math.min(start, end);
+        
+        // set up a scan for the range
+        scanner.setPartialRange(doc, start, end - start, IDocument.DEFAULT_CONTENT_TYPE, start);
 
         boolean controlCreated = false;
+        TextPresentation pres = new TextPresentation();
+        Set<ContainedEditorManager> found = new HashSet<ContainedEditorManager>();
         
         // create the controls,
         // determine their ranges, 
@@ -334,19 +462,70 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
         IToken tok;
         while (! ( tok = scanner.nextToken() ).isEOF()) {
             if (tok == ContainingEditorScanner.EDITOR_TOKEN) {
-                StyleRange[] ranges = createAndAddControl(
-                        scanner.getTokenOffset(), scanner.getTokenLength());
-                TextPresentation singlePres = new TextPresentation();
-                singlePres.addStyleRange(ranges[0]);
-                singlePres.addStyleRange(ranges[1]);
-                this.containingEditor.internalGetSourceViewer().changeTextPresentation(singlePres, true);
+                int tokenOffset = scanner.getTokenOffset();
+                int tokenLength = scanner.getTokenLength();
+                StyleRange[] ranges = createAndAddControl(tokenOffset, tokenLength);
+                found.add(editorPositions.findExact(tokenOffset, tokenLength));
+                pres.addStyleRange(ranges[0]);
+                pres.addStyleRange(ranges[1]);
                 
                 controlCreated = true;
             }
         }
         
+        // the text of these editors has been broken or replaced
+        for (final ContainedEditorManager c : existing) {
+            if (!found.contains(c) && editorPositions.get(c) != null) {
+                forgetEditor(c);
+            }
+        }
+        
+        if (!pres.isEmpty()) {
+            this.containingEditor.internalGetSourceViewer().changeTextPresentation(pres, true);
+        }
         return controlCreated;
     }
+    
+    /**
+     * @param first may be null
+     * @param second
+     * @return the smallest region covering both regions
+     */
+    private static IRegion union(IRegion first, IRegion second) {
+        if (first == null) {
+            return second;
+        }
+        int start = Math.min(first.getOffset(), second.getOffset());
+        int end = Math.max(first.getOffset() + first.getLength(), 
+                second.getOffset() + second.getLength());
+        return new Region(start, end - start);
+    }
+    
+    /**
+     * Removes an editor whose text is no longer in the document, along with
+     * its annotation.  Unlike editorDeleted, the document is not changed.
+     * @param c
+     */
+    private void forgetEditor(ContainedEditorManager c) {
+        removeControl(c, true);
+        EmbeddedAnnotation annotation = editorAnnotationMap.remove(c);
+        if (annotation != null) {
+            annotationModel.removeAnnotation(annotation);
+        }
+        if (c == currentlyActiveEditor) {
+            currentlyActiveEditor = null;
+        }
+        if (c == moduleEditor) {
+            // look for new module editor, or else it becomes null.
+            replaceModuleEditor(null);
+            for (final ContainedEditorManager contained : editorPositions.editors()) {
+                if (contained.editorKind() == CALModuleEditorManager.EDITOR_KIND) {
+                    replaceModuleEditor((CALModuleEditorManager) contained);
+                    break;
+                }
+            }
+        }
+    }
 
     /**
      * Maps a position from the model; (complete) document to the projected document
@@ -415,43 +594,214 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
      * 
      * The repaint will update the positions of all of the embedded controls. 
      * 
-     * XXX this method is being called too many times.  It is being called more than
-     * once after each cursor change.  I need to take a good look at this and determine
-     * exactly when and where it should be called
+     * This is called by the paint manager.  Everything else should call 
+     * scheduleRepaint, since a single cursor change can request several 
+     * repaints.
      */
     public void paint(int reason) {
         if (reason != TEXT_CHANGE && reason != ContainingEditor.EMBEDDED_REPAINT) {
             return;
         }
-        List<ContainedEditorManager> toRemove = new LinkedList<ContainedEditorManager>();
-
-        for (final ContainedEditorManager c : editorPositionMap.keySet()) {
-            Position model = editorPositionMap.get(c);
-            if (!model.isDeleted()) {
-                // map from the model to the actual display (takes into account folding)
-                Position projected = modelToProjected(model);
-                if (projected == null) {
-                    // position is hidden behind folding
-                    c.getControl().setVisible(false);
-                } else {
-                    try {
-                        Point location = styledText.getLocationAtOffset(projected.offset);
-                        location.x += ContainingEditor.MARGIN;
-                        location.y += ContainingEditor.MARGIN;
-                        c.getControl().setVisible(true);
-                        c.getControl().setLocation(location);
-                    } catch (IllegalArgumentException e) {
-                        EmbeddedCALPlugin.logError("Error repainting", e);
-                    }
+        if (reason == TEXT_CHANGE) {
+            layoutValid = false;
+        }
+        boolean changed = !layoutValid;
+        
+        for (final ContainedEditorManager c : editorPositions.takeDeleted()) {
+            removeControl(c, true);
+            changed = true;
+        }
+        
+        int topPixel = styledText.getTopPixel();
+        int horizontalPixel = styledText.getHorizontalPixel();
+        int dx = horizontalPixel - lastHorizontalPixel;
+        int dy = topPixel - lastTopPixel;
+        
+        // only the editors near the visible range are placed.  The module
+        // editor and the active editor always have controls, so they are 
+        // placed wherever they are
+        Position visible = nearlyVisibleRange();
+        List<ContainedEditorManager> inView = 
+            editorPositions.findIntersecting(visible.offset, visible.length);
+        if (moduleEditor != null && !inView.contains(moduleEditor)) {
+            inView.add(moduleEditor);
+        }
+        if (currentlyActiveEditor != null && !inView.contains(currentlyActiveEditor)) {
+            inView.add(currentlyActiveEditor);
+        }
+
+        Map<ContainedEditorManager, Point> nowShown = 
+            new HashMap<ContainedEditorManager, Point>();
+        for (final ContainedEditorManager c : inView) {
+            Position model = editorPositions.get(c);
+            if (model == null || model.isDeleted()) {
+                continue;
+            }
+            boolean wasShown = shownEditors.containsKey(c);
+            Point last = shownEditors.remove(c);
+            Point location;
+            if (!c.isControlCreated()) {
+                location = createEditorControl(c);
+                changed = true;
+            } else if (layoutValid && last != null) {
+                // the control only has to follow the scrolling.  StyledText
+                // may already have moved it
+                location = new Point(last.x - dx, last.y - dy);
+                if (!c.getControl().getLocation().equals(location)) {
+                    c.setLocation(location);
+                    changed = true;
                 }
             } else {
-                toRemove.add(c);
+                location = placeControl(c, model);
+                changed |= !wasShown || location == null || !location.equals(last);
             }
+            hiddenEditors.remove(c);
+            nowShown.put(c, location);
         }
-        for (final ContainedEditorManager c : toRemove) {
-            removeControl(c, true);
+        
+        // hide the editors that have scrolled out of view
+        for (final ContainedEditorManager c : shownEditors.keySet()) {
+            if (c.isControlCreated()) {
+                c.getControl().setVisible(false);
+                hiddenEditors.addLast(c);
+                changed = true;
+            }
+        }
+        shownEditors = nowShown;
+        lastTopPixel = topPixel;
+        lastHorizontalPixel = horizontalPixel;
+        layoutValid = true;
+        layoutDirty = false;
+        lastPaintTime = System.currentTimeMillis();
+        
+        trimHiddenEditors();
+        if (changed) {
+            styledText.getParent().getParent().redraw();
         }
-        styledText.getParent().getParent().redraw();
+    }
+    
+    /**
+     * Marks the layout of the embedded controls as dirty and schedules a 
+     * repaint.  Requests that arrive before the scheduled repaint has run
+     * are merged into it, and repaints are at least a frame apart.
+     * @param reason TEXT_CHANGE if the text or the line heights may have 
+     * changed, EMBEDDED_REPAINT if only the scroll position may have
+     */
+    public void scheduleRepaint(int reason) {
+        if (reason == TEXT_CHANGE) {
+            layoutValid = false;
+        }
+        layoutDirty = true;
+        if (repaintScheduled) {
+            mergedRepaints++;
+            return;
+        }
+        repaintScheduled = true;
+        long wait = lastPaintTime + FRAME_MILLIS - System.currentTimeMillis();
+        if (wait > 0) {
+            styledText.getDisplay().timerExec((int) wait, scheduledRepaint);
+        } else {
+            styledText.getDisplay().asyncExec(scheduledRepaint);
+        }
+    }
+    
+    /**
+     * @return the number of repaint requests that were merged into an 
+     * already scheduled repaint
+     */
+    public int getMergedRepaintCount() {
+        return mergedRepaints;
+    }
+    
+    /**
+     * Moves the control of an editor over its position
+     * @param c
+     * @param model the position of the editor in the document
+     * @return the location of the control, or null if the position is 
+     * hidden in a fold
+     */
+    private Point placeControl(ContainedEditorManager c, Position model) {
+        // map from the model to the actual display (takes into account folding)
+        Position projected = modelToProjected(model);
+        if (projected == null) {
+            // position is hidden behind folding
+            c.getControl().setVisible(false);
+            return null;
+        }
+        try {
+            Point location = styledText.getLocationAtOffset(projected.offset);
+            location.x += ContainingEditor.MARGIN;
+            location.y += ContainingEditor.MARGIN;
+            c.getControl().setVisible(true);
+            c.getControl().setLocation(location);
+            return location;
+        } catch (IllegalArgumentException e) {
+            EmbeddedCALPlugin.logError("Error repainting", e);
+            return null;
+        }
+    }
+    
+    /**
+     * @return the model range that is visible in the containing editor, 
+     * extended by the height of the visible range above and below, so that
+     * controls are created just before they are scrolled into view
+     */
+    private Position nearlyVisibleRange() {
+        ISourceViewer viewer = containingEditor.getContainingViewer();
+        int top = viewer.getTopIndexStartOffset();
+        int bottom = viewer.getBottomIndexEndOffset();
+        int extent = Math.max(bottom - top, 0);
+        int start = Math.max(top - extent, 0);
+        int end = Math.min(bottom + extent + 1, doc.getLength());
+        return new Position(start, Math.max(end - start, 1));
+    }
+    
+    /**
+     * disposes the controls of the editors that have been out of view the 
+     * longest, keeping at most MAX_HIDDEN_CONTROLS.  Their properties are
+     * kept, so the controls are recreated when they are scrolled back into
+     * view.  Editors with unsaved changes and the module editor are kept.
+     */
+    private void trimHiddenEditors() {
+        int toDispose = hiddenEditors.size() - MAX_HIDDEN_CONTROLS;
+        for (Iterator<ContainedEditorManager> editorIter = hiddenEditors.iterator(); 
+                toDispose > 0 && editorIter.hasNext(); ) {
+            ContainedEditorManager c = editorIter.next();
+            if (!c.getPropertiess().isDirty() && c != currentlyActiveEditor && 
+                    c != moduleEditor) {
+                editorIter.remove();
+                c.disposeControl();
+                toDispose--;
+            }
+        }
+    }
+    
+    /**
+     * Creates the SWT control of an editor whose properties have already 
+     * been read, and places it over its position.
+     * @param contained
+     * @return the location of the control, or null if it is hidden in a fold
+     */
+    private Point createEditorControl(ContainedEditorManager contained) {
+        contained.createControl(styledText, containingEditor);
+        contained.initializeEditorContents(containingEditor);
+        contained.registerActions(containingEditor);
+        
+        // determine the location of the contained editor
+        return placeControl(contained, editorPositions.get(contained));
+    }
+    
+    /**
+     * Ensures that an editor has a control, for instance before it is 
+     * given focus
+     * @param editor
+     * @return the editor
+     */
+    private ContainedEditorManager ensureControl(ContainedEditorManager editor) {
+        if (editor != null && !editor.isControlCreated()) {
+            createEditorControl(editor);
+        }
+        return editor;
     }
 
     
@@ -459,10 +809,15 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
      * disposes all of the controls and unremembers their positions
      */
     public void dispose() {
-        for (final ContainedEditorManager c : editorPositionMap.keySet()) {
+        for (final ContainedEditorManager c : editorPositions.editors()) {
             removeControl(c, false);
         }
-        editorPositionMap.clear();
+        editorPositions.clear();
+        editorPositions.uninstall();
+        doc.removeDocumentPartitioningListener(partitioningListener);
+        hiddenEditors.clear();
+        shownEditors.clear();
+        layoutValid = false;
     }
 
 
@@ -480,9 +835,9 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
     private Position removeControl(ContainedEditorManager c, boolean doRemove) {
         Position p; 
         if (doRemove) {
-            p = editorPositionMap.remove(c);
+            p = editorPositions.remove(c);
         } else {
-            p = editorPositionMap.get(c);
+            p = editorPositions.get(c);
         }
         try {
             ppManager.unmanagePosition(p);
@@ -498,13 +853,16 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
         }
         c.removeListener(this);
         c.dispose();
+        hiddenEditors.remove(c);
+        shownEditors.remove(c);
         return p;
     }
 
 
 
     /*
-     * Adds a control at the given position
+     * Adds an editor at the given position.  Its control is only created 
+     * when the position is scrolled into view.
      */
     private ContainedEditorManager addControl(int offset, int length) {
         // create the control propoerties
@@ -521,28 +879,19 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
             props = new CALExpressionEditorProperties();
         }
 
-        ContainedEditorManager contained = 
-            EditorManagerFactory.createManager(props);
-        
-        if (contained.editorKind() ==  CALModuleEditorManager.EDITOR_KIND) {
-            replaceModuleEditor((CALModuleEditorManager) contained);
-        }
-        
-        contained.createControl(styledText, containingEditor);
-        contained.initializeEditorContents(containingEditor);
-
-        // determine the location of the contained editor
-        Position projected = modelToProjected(new Position(offset, 0));
-        Point location = styledText.getLocationAtOffset(projected.offset);
-        location.x += ContainingEditor.MARGIN;
-        location.y += ContainingEditor.MARGIN;
-        contained.setLocation(location);
-        
-        return contained;
+        return EditorManagerFactory.createManager(props);
 
     }
 
+    /**
+     * Makes an editor the module editor.  The module editor is used by the 
+     * code analyzer and by open declaration, so its control is created here
+     * if it does not have one yet.
+     * @param contained the new module editor, which must already have a 
+     * position, or null if there is none
+     */
     private void replaceModuleEditor(CALModuleEditorManager contained) {
+        ensureControl(contained);
         if (moduleEditor != null) {
             CodeAnalyzer analyzer = containingEditor.getAnalyzer();
             // ADE I don't like this instanceof test.  Can we make CodeAnalyzer implement EditorListener?
@@ -574,7 +923,9 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
         int offset = p.offset;
         int length = p.length;
 
-        Rectangle rect = c.getControl().getBounds();   
+        // the control has the size in the properties, but it may not exist yet
+        ContainedEditorProperties props = c.getPropertiess();
+        Rectangle rect = new Rectangle(0, 0, props.getWidth(), props.getHeight());   
         int ascent = rect.height-4;
         int descent = 4;    
 
@@ -612,14 +963,18 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
     public StyleRange[] createAndAddControl(int offset, int length) {
         StyleRange[] styles = null;
         Position pos = new Position(offset, length);
-        if (!editorPositionMap.containsValue(pos)) {
+        ContainedEditorManager existing = editorPositions.findExact(offset, length);
+        if (existing == null) {
             ContainedEditorManager newContainedEditor = addControl(offset, length);
             newContainedEditor.addListener(this);
             styles = createStyleRange(newContainedEditor, pos);
-            newContainedEditor.registerActions(containingEditor);
-            editorPositionMap.put(newContainedEditor, pos);
+            editorPositions.put(newContainedEditor, pos);
             ppManager.managePosition(pos);
             
+            if (newContainedEditor.editorKind() == CALModuleEditorManager.EDITOR_KIND) {
+                replaceModuleEditor((CALModuleEditorManager) newContainedEditor);
+            }
+            
             // add the annotation in the gutter
             EmbeddedAnnotation annotation = new EmbeddedAnnotation(newContainedEditor);
             if (newContainedEditor.editorKind() == CALExpressionEditorManager.EDITOR_KIND) {
@@ -635,12 +990,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
 //            annotationModel.collapse(annotation);
             editorAnnotationMap.put(newContainedEditor, annotation);
         } else {
-            for (final ContainedEditorManager c : editorPositionMap.keySet()) {
-                if (editorPositionMap.get(c).equals(pos)) {
-                    styles = createStyleRange(c, pos);
-                    break;
-                }
-            }
+            styles = createStyleRange(existing, pos);
         }
         return styles;
     }
@@ -656,13 +1006,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
         // map from projected document (with folding) to the model
         // document (complete, without folding)
         Position model = projectedToModel(new Position(embeddedOffset, embeddedLength));
-        for (final Position editorPos : editorPositionMap.values()) {
-            if (model.offset + model.length > editorPos.offset && 
-                    model.offset < editorPos.offset + editorPos.length) {
-                return true;
-            }
-        }
-        return false;
+        return editorPositions.intersects(model.offset, model.length);
     }
 
     /**
@@ -678,22 +1022,12 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
      * is none.
      */
     public ContainedEditorManager findEditor(int offset, int length, boolean overlapOK) {
-        Position selectedModelPosition = new Position(offset, length);
-        for (final ContainedEditorManager editor : editorPositionMap.keySet()) {
-            Position editorPosition = editorPositionMap.get(editor);
-            if (overlapOK) {
-                if (editorPosition.overlapsWith(selectedModelPosition.offset, selectedModelPosition.length)) {
-                    return editor;
-                }
-            } else {
-                if (editorPosition.offset < selectedModelPosition.offset && 
-                    editorPosition.offset + editorPosition.length > 
-                            selectedModelPosition.offset + selectedModelPosition.length) {
-                    return editor;
-                }
-            }
+        // the editor may be about to get focus, so it needs its control
+        if (overlapOK) {
+            return ensureControl(editorPositions.findOverlapping(offset, length));
+        } else {
+            return ensureControl(editorPositions.findContaining(offset, length));
         }
-        return null;
     }
     
     /**
@@ -723,45 +1057,41 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
      * created earlier
      */
     public void applyTextPresentation(TextPresentation textPresentation) {
+        // new style ranges may change line heights, and so the locations of
+        // the controls below them
+        layoutValid = false;
+        
         // need to check if any of the ranges of the textPresentation overlaps
         // with an embedded editor region.
-
-        // for now, we can assume that there won't be many store positions, so we can 
-        // just go through them sequentially.
-        // if this turns out to be expensive, we can be more intelligent later
-        Collection<Position> values = editorPositionMap.values();
         for (Iterator<StyleRange> rangeIter = textPresentation.getAllStyleRangeIterator(); rangeIter.hasNext(); ) {
             StyleRange range = rangeIter.next();
-            Position overlapPosition = null;
-            for (final Position editorPosition : values) {
-                if (editorPosition.overlapsWith(range.start, range.length)) {
-                    overlapPosition = editorPosition;
-                    break;
-                }
-            }
+            ContainedEditorManager overlapEditor = 
+                editorPositions.findOverlapping(range.start, range.length);
             
-            if (overlapPosition != null) {
-                textPresentation.replaceStyleRanges(createStyleRange(getEditor(overlapPosition), 
-                        overlapPosition));
+            if (overlapEditor != null) {
+                textPresentation.replaceStyleRanges(createStyleRange(overlapEditor, 
+                        editorPositions.get(overlapEditor)));
             }
         }
     }
+    
+    public Position getEditorPosition(ContainedEditorManager editor) {
+        return editorPositions.get(editor);
+    }
+    
     /**
-     * get the key from a given value.  O(n), but we don't expect this map
-     * to be very large.  can change this later if it is a bottleneck.
+     * @param props
+     * @return the position of the editor that has the given properties, or
+     * null if there is none
      */
-    private ContainedEditorManager getEditor(Position p) {
-        for (final ContainedEditorManager editor : editorPositionMap.keySet()) {
-            if (p.equals(editorPositionMap.get(editor))) {
-                return editor;
+    public Position getEditorPosition(ContainedEditorProperties props) {
+        for (final ContainedEditorManager editor : editorPositions.editors()) {
+            if (editor.getPropertiess() == props) {
+                return editorPositions.get(editor);
             }
         }
         return null;
     }
-    
-    public Position getEditorPosition(ContainedEditorManager editor) {
-        return editorPositionMap.get(editor);
-    }
 
     /**
      * Copies the contents of the contained editor into the containing editor.
@@ -775,37 +1105,99 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
     public void updateSerialization(ContainedEditorManager editor, ContainedEditorProperties props) {
         
         String serialization = props.serializeEmbeddedEditor(this);
-        Position p = editorPositionMap.get(editor);
+        Position p = editorPositions.get(editor);
         try {
             doc.replace(p.offset, p.length, serialization);
         } catch (BadLocationException e) {
             EmbeddedCALPlugin.logError("Error updating annotation", e);
         }
         
-        @SuppressWarnings("restriction")
-        ICompilationUnit unit = ((org.eclipse.jdt.internal.ui.javaeditor.ICompilationUnitDocumentProvider) 
-                containingEditor.getDocumentProvider()).getWorkingCopy(
-                        containingEditor.getEditorInput());
-        
+        ICompilationUnit unit = getWorkingCopy();
         if (unit != null) {
             props.requiresImport(unit);
         }
     }
+    
+    /**
+     * @return the working copy of the compilation unit being edited by the
+     * containing editor, or null if there is none
+     */
+    @SuppressWarnings("restriction")
+    public ICompilationUnit getWorkingCopy() {
+        return ((org.eclipse.jdt.internal.ui.javaeditor.ICompilationUnitDocumentProvider) 
+                containingEditor.getDocumentProvider()).getWorkingCopy(
+                        containingEditor.getEditorInput());
+    }
+    
+    /**
+     * Parses the working copy with bindings resolved.  While saveAllEditors 
+     * is running, the first call parses and the rest of the editors being 
+     * saved share the result, since serializing each editor changes the 
+     * document.  Use getResolvedOffset for positions in the AST.
+     * 
+     * @return the resolved AST of the working copy, or null if there is none
+     */
+    public CompilationUnit getResolvedAST() {
+        if (!savingAllEditors) {
+            return parseWorkingCopy();
+        }
+        if (savePassAST == null) {
+            savePassAST = parseWorkingCopy();
+            savePassOffsets = new HashMap<ContainedEditorProperties, Integer>();
+            for (final ContainedEditorManager editor : editorPositions.editors()) {
+                savePassOffsets.put(editor.getPropertiess(), editorPositions.get(editor).offset);
+            }
+        }
+        return savePassAST;
+    }
+    
+    /**
+     * @param props
+     * @return the offset in the AST returned by getResolvedAST of the editor 
+     * that has the given properties, or -1 if there is none
+     */
+    public int getResolvedOffset(ContainedEditorProperties props) {
+        if (savePassOffsets != null) {
+            Integer offset = savePassOffsets.get(props);
+            return offset == null ? -1 : offset;
+        }
+        Position p = getEditorPosition(props);
+        return p == null ? -1 : p.offset;
+    }
+    
+    private CompilationUnit parseWorkingCopy() {
+        ICompilationUnit unit = getWorkingCopy();
+        if (unit == null) {
+            return null;
+        }
+        ASTParser parser = ASTParser.newParser(AST.JLS3);
+        parser.setSource(unit);
+        parser.setResolveBindings(true);
+        ASTNode node = parser.createAST(null);
+        return node instanceof CompilationUnit ? (CompilationUnit) node : null;
+    }
 
     public void saveAllEditors() {
         String moduleName = getModuleName();
         if (moduleName != null) {
-            for (final ContainedEditorManager editor : editorPositionMap.keySet()) {
-                // check to see if the module name is up to date
-                if (editor.editorKind() == CALExpressionEditorManager.EDITOR_KIND) {
-                    CALExpressionEditorProperties exprProps = (CALExpressionEditorProperties) 
-                            editor.getPropertiess();
-                    if (! exprProps.getModuleName().equals(moduleName)) {
-                        // module name has changed, must re-serialize this expression editor.
-                        exprProps.setDirty(true);
+            savingAllEditors = true;
+            try {
+                for (final ContainedEditorManager editor : editorPositions.editors()) {
+                    // check to see if the module name is up to date
+                    if (editor.editorKind() == CALExpressionEditorManager.EDITOR_KIND) {
+                        CALExpressionEditorProperties exprProps = (CALExpressionEditorProperties) 
+                                editor.getPropertiess();
+                        if (! exprProps.getModuleName().equals(moduleName)) {
+                            // module name has changed, must re-serialize this expression editor.
+                            exprProps.setDirty(true);
+                        }
                     }
+                    editor.doSave();
                 }
-                editor.doSave();
+            } finally {
+                savingAllEditors = false;
+                savePassAST = null;
+                savePassOffsets = null;
             }
         }
     }
@@ -1017,7 +1409,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
             styledText.setHorizontalPixel(styledText.getHorizontalPixel() 
                     + containingLoc.x);
         }
-        paint(ContainingEditor.EMBEDDED_REPAINT);
+        scheduleRepaint(ContainingEditor.EMBEDDED_REPAINT);
     }
 
 
@@ -1041,7 +1433,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
         if (editor == moduleEditor) {
             // look for new module editor, or else it becomes null.
             replaceModuleEditor(null);
-            for (final ContainedEditorManager contained : editorPositionMap.keySet()) {
+            for (final ContainedEditorManager contained : editorPositions.editors()) {
                 if (contained.editorKind() == CALModuleEditorManager.EDITOR_KIND) {
                     replaceModuleEditor((CALModuleEditorManager) contained);
                     break;
@@ -1060,7 +1452,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
 
     public void editorFocusGained(ContainedEditorManager editor,
             ContainedEditorProperties props) {
-        Position p = editorPositionMap.get(editor);
+        Position p = editorPositions.get(editor);
         currentlyActiveEditor = editor;
         if (p != null) {
             containingEditor.getContainingViewer().setSelectedRange(p.offset, p.length);
@@ -1090,7 +1482,7 @@ public class ControlManager implements IPainter, ITextPresentationListener, ICon
     public void exitingEditor(ContainedEditorManager editor,
             ContainedEditorProperties props, ExitDirection dir) {
     
-        Position controlPosition = editorPositionMap.get(editor);
+        Position controlPosition = editorPositions.get(editor);
         switch (dir) {
         case UP:
             // not handled for now
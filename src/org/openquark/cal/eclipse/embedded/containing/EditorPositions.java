@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved. 
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+
+/*
+ * EditorPositions.java
+ */
+package org.openquark.cal.eclipse.embedded.containing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IPositionUpdater;
+import org.eclipse.jface.text.Position;
+import org.openquark.cal.eclipse.embedded.contained.ContainedEditorManager;
+
+/**
+ * The positions of the contained editors in the containing document, 
+ * indexed both ways.
+ * <p>
+ * Embedded regions never overlap, so the positions that have not been 
+ * deleted are kept in a list sorted by offset, and overlap and containment 
+ * queries are binary searches.  Positions are mutated by the 
+ * DefaultPositionUpdater of the position manager, which keeps their order
+ * except for the positions touched by an edit.  Those are taken out of the 
+ * list before the DefaultPositionUpdater runs and put back in their new 
+ * place afterwards, unless the edit deleted them.
+ * <p>
+ * Positions change their hash codes as they move, so the reverse index 
+ * from positions to editors compares them by identity.
+ */
+class EditorPositions {
+
+    private final Map<ContainedEditorManager, Position> positions = 
+        new HashMap<ContainedEditorManager, Position>();
+    
+    private final Map<Position, ContainedEditorManager> editors = 
+        new IdentityHashMap<Position, ContainedEditorManager>();
+    
+    /** the positions that are not deleted, sorted by offset */
+    private final List<Position> sorted = new ArrayList<Position>();
+    
+    /** the positions touched by the document change that is being applied */
+    private final List<Position> changing = new ArrayList<Position>();
+    
+    /** the editors whose positions were deleted by document changes */
+    private final List<ContainedEditorManager> deleted = 
+        new ArrayList<ContainedEditorManager>();
+    
+    private IDocument doc;
+    
+    /** 
+     * runs before all other updaters, while the positions still have their 
+     * offsets from before the change
+     */
+    private final IPositionUpdater beforeUpdate = new IPositionUpdater() {
+        public void update(DocumentEvent event) {
+            int end = event.getOffset() + event.getLength();
+            int index = firstEndingAfter(event.getOffset() - 1);
+            while (index < sorted.size() && sorted.get(index).offset <= end) {
+                changing.add(sorted.remove(index));
+            }
+        }
+    };
+    
+    /** runs after the DefaultPositionUpdater of the position manager */
+    private final IPositionUpdater afterUpdate = new IPositionUpdater() {
+        public void update(DocumentEvent event) {
+            for (final Position p : changing) {
+                if (!p.isDeleted()) {
+                    insertSorted(p);
+                } else if (editors.containsKey(p)) {
+                    deleted.add(editors.get(p));
+                }
+            }
+            changing.clear();
+        }
+    };
+    
+    /**
+     * Keeps the sorted list in sync with the document.  Must be called 
+     * after the position manager is installed, so that its updater runs 
+     * between ours.
+     * 
+     * @param document
+     */
+    void install(IDocument document) {
+        uninstall();
+        doc = document;
+        doc.insertPositionUpdater(beforeUpdate, 0);
+        doc.addPositionUpdater(afterUpdate);
+    }
+    
+    void uninstall() {
+        if (doc != null) {
+            doc.removePositionUpdater(beforeUpdate);
+            doc.removePositionUpdater(afterUpdate);
+            doc = null;
+        }
+    }
+
+    void put(ContainedEditorManager editor, Position p) {
+        remove(editor);
+        positions.put(editor, p);
+        editors.put(p, editor);
+        insertSorted(p);
+    }
+    
+    /**
+     * @param editor
+     * @return the position of the removed editor, or null if it was not here
+     */
+    Position remove(ContainedEditorManager editor) {
+        Position p = positions.remove(editor);
+        if (p != null) {
+            editors.remove(p);
+            removeSorted(p);
+        }
+        return p;
+    }
+    
+    Position get(ContainedEditorManager editor) {
+        return positions.get(editor);
+    }
+    
+    /**
+     * @param p a position that is in this index
+     * @return the editor at that position, or null if the position is not 
+     * in this index
+     */
+    ContainedEditorManager getEditor(Position p) {
+        return editors.get(p);
+    }
+    
+    /**
+     * @return all of the editors, including those whose positions have been
+     * deleted but that have not been removed yet
+     */
+    Collection<ContainedEditorManager> editors() {
+        return positions.keySet();
+    }
+    
+    void clear() {
+        positions.clear();
+        editors.clear();
+        sorted.clear();
+        changing.clear();
+        deleted.clear();
+    }
+    
+    /**
+     * @return the editors whose positions have been deleted since the last
+     * call, and that are still in this index
+     */
+    List<ContainedEditorManager> takeDeleted() {
+        List<ContainedEditorManager> taken = new ArrayList<ContainedEditorManager>(deleted.size());
+        for (final ContainedEditorManager editor : deleted) {
+            if (positions.containsKey(editor)) {
+                taken.add(editor);
+            }
+        }
+        deleted.clear();
+        return taken;
+    }
+    
+    /**
+     * @param offset
+     * @param length
+     * @return the editor at exactly this position, or null if there is none
+     */
+    ContainedEditorManager findExact(int offset, int length) {
+        int index = firstEndingAfter(offset);
+        if (index < sorted.size()) {
+            Position p = sorted.get(index);
+            if (p.offset == offset && p.length == length) {
+                return editors.get(p);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @param offset
+     * @param length
+     * @return the first editor whose position overlaps with the range, as 
+     * defined by {@link Position#overlapsWith(int, int)}, or null if there 
+     * is none
+     */
+    ContainedEditorManager findOverlapping(int offset, int length) {
+        // a position that ends at or before offset cannot overlap, and if 
+        // the first one that ends after it does not overlap, the ones 
+        // after it start even later
+        int index = firstEndingAfter(offset);
+        if (index < sorted.size()) {
+            Position p = sorted.get(index);
+            if (p.overlapsWith(offset, length)) {
+                return editors.get(p);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @param offset
+     * @param length
+     * @return true if the range starts before the end of the position of an 
+     * editor and ends after its start
+     */
+    boolean intersects(int offset, int length) {
+        int index = firstEndingAfter(offset);
+        return index < sorted.size() && offset + length > sorted.get(index).offset;
+    }
+    
+    /**
+     * @param offset
+     * @param length
+     * @return the editor whose position strictly contains the range, or 
+     * null if there is none
+     */
+    ContainedEditorManager findContaining(int offset, int length) {
+        int index = firstEndingAfter(offset + length);
+        if (index < sorted.size()) {
+            Position p = sorted.get(index);
+            if (p.offset < offset) {
+                return editors.get(p);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @param offset
+     * @param length
+     * @return the editors whose positions intersect with the range, in 
+     * document order
+     */
+    List<ContainedEditorManager> findIntersecting(int offset, int length) {
+        List<ContainedEditorManager> found = new ArrayList<ContainedEditorManager>();
+        int end = offset + length;
+        for (int index = firstEndingAfter(offset); 
+                index < sorted.size() && sorted.get(index).offset < end; index++) {
+            found.add(editors.get(sorted.get(index)));
+        }
+        return found;
+    }
+    
+    /**
+     * @param offset
+     * @return the index of the first sorted position whose end is after 
+     * the offset, or the number of sorted positions if there is none.  The 
+     * positions are disjoint, so their ends are sorted too.
+     */
+    private int firstEndingAfter(int offset) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Position p = sorted.get(mid);
+            if (p.offset + p.length > offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+    
+    private void insertSorted(Position p) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted.get(mid).offset <= p.offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        sorted.add(low, p);
+    }
+    
+    private void removeSorted(Position p) {
+        int index = firstEndingAfter(p.offset);
+        if (index < sorted.size() && sorted.get(index) == p) {
+            sorted.remove(index);
+            return;
+        }
+        // the position has moved out of order, or was deleted.  This is rare
+        for (int cnt = 0; cnt < sorted.size(); cnt++) {
+            if (sorted.get(cnt) == p) {
+                sorted.remove(cnt);
+                return;
+            }
+        }
+        for (int cnt = 0; cnt < changing.size(); cnt++) {
+            if (changing.get(cnt) == p) {
+                changing.remove(cnt);
+                return;
+            }
+        }
+    }
+}
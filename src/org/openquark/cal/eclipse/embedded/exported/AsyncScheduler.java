@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * AsyncScheduler.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the threads that run asynchronous evaluations of embedded 
+ * expressions.
+ * <p>
+ * The default scheduler is a fixed pool of daemon threads with a bounded 
+ * queue.  When the queue is full, the submitting thread waits for space, 
+ * which slows down producers that outpace the CAL executors.  The 
+ * submitting thread never runs the evaluation itself, since that could 
+ * put a second thread on a shared CAL executor.
+ */
+final class AsyncScheduler {
+
+    /** the default number of evaluations that may wait for a thread */
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    
+    private static ExecutorService scheduler;
+    
+    /** true if the current scheduler was created here */
+    private static boolean ownsScheduler = true;
+    
+    /** true if the current scheduler was created by default, not configured */
+    private static boolean isDefault = true;
+    
+    private AsyncScheduler() {
+        // not instantiated
+    }
+    
+    /**
+     * @return the scheduler, creating the default one if none has been set
+     */
+    static synchronized ExecutorService get() {
+        if (scheduler == null) {
+            // a single shared CAL executor must not be used by several threads
+            int numThreads = RunQuark.getConcurrencyMode() == RunQuark.ConcurrencyMode.SHARED ? 
+                    1 : Runtime.getRuntime().availableProcessors();
+            scheduler = makeFixed(numThreads, DEFAULT_QUEUE_CAPACITY);
+            ownsScheduler = true;
+            isDefault = true;
+        }
+        return scheduler;
+    }
+    
+    /**
+     * Replaces the scheduler.  The old one is shut down after its queued 
+     * evaluations have run, unless it was supplied by the client.
+     * 
+     * @param newScheduler
+     * @param owned true if the scheduler was created here, and so should be 
+     * shut down when it is replaced
+     */
+    static synchronized void set(ExecutorService newScheduler, boolean owned) {
+        if (scheduler != null && ownsScheduler) {
+            scheduler.shutdown();
+        }
+        scheduler = newScheduler;
+        ownsScheduler = owned;
+        isDefault = false;
+    }
+    
+    /**
+     * Discards the default scheduler so that it is recreated to suit the 
+     * current concurrency mode.  A configured scheduler is kept.
+     */
+    static synchronized void concurrencyModeChanged() {
+        if (scheduler != null && isDefault) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+    
+    /**
+     * @param numThreads the number of evaluations that can run at once
+     * @param queueCapacity the number of evaluations that can wait for a thread
+     * @return a new fixed size scheduler with a bounded queue
+     */
+    static ExecutorService makeFixed(int numThreads, int queueCapacity) {
+        return new ThreadPoolExecutor(numThreads, numThreads,
+                60, TimeUnit.SECONDS, 
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new DaemonThreadFactory("Embedded CAL evaluation "),
+                new WaitForSpacePolicy());
+    }
+    
+    /**
+     * Makes submitters wait until there is space in the queue.  The wait is 
+     * done in short steps, so that a submitter waiting when the scheduler is 
+     * shut down gives up rather than queueing a task that never runs.
+     */
+    private static final class WaitForSpacePolicy implements RejectedExecutionHandler {
+        private static final long WAIT_STEP_MILLIS = 100;
+        
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            try {
+                while (true) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("The evaluation scheduler has been shut down");
+                    }
+                    if (executor.getQueue().offer(r, WAIT_STEP_MILLIS, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting to evaluate");
+            }
+            
+            // the scheduler may have been shut down after the last check, in 
+            // which case no thread is left to run the task.  If it cannot be 
+            // removed, then a thread has already taken it.
+            if (executor.isShutdown() && executor.remove(r)) {
+                throw new RejectedExecutionException("The evaluation scheduler has been shut down");
+            }
+        }
+    }
+    
+    /**
+     * Evaluation threads must not keep the JVM alive
+     */
+    static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+        private final String namePrefix;
+        
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+        
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + 
+                    threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
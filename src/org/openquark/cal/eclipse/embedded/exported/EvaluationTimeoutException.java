@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * EvaluationTimeoutException.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when an embedded expression does not finish evaluating before its
+ * deadline.  The evaluation has been terminated and the executor it was 
+ * running on has been discarded.
+ */
+public class EvaluationTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = -3419822503370957262L;
+    
+    private final long timeoutMillis;
+
+    /**
+     * @param exprText the expression that timed out
+     * @param timeoutNanos the deadline that was exceeded
+     * @param cause the error raised by the executor when it was terminated, or null
+     */
+    EvaluationTimeoutException(String exprText, long timeoutNanos, Throwable cause) {
+        super("Evaluation did not finish within " + 
+                TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms: " + exprText, cause);
+        this.timeoutMillis = TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+    
+    /**
+     * @return the deadline that was exceeded, in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
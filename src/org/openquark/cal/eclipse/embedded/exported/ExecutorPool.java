@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ExecutorPool.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openquark.cal.machine.CALExecutor;
+import org.openquark.cal.services.WorkspaceManager;
+
+/**
+ * Hands out CAL executors to threads that want to evaluate an embedded 
+ * expression.  Callers must pair every call to {@link #acquire()} with a call
+ * to {@link #release(CALExecutor)}, typically in a finally block.
+ * <p>
+ * Each executor is created with its own execution context, so evaluations
+ * running on different executors do not share any runtime state.
+ */
+abstract class ExecutorPool {
+
+    protected final WorkspaceManager workspaceManager;
+    
+    protected ExecutorPool(WorkspaceManager workspaceManager) {
+        this.workspaceManager = workspaceManager;
+    }
+    
+    /**
+     * @return an executor that the current thread may use until it is released
+     */
+    abstract CALExecutor acquire();
+    
+    /**
+     * returns an executor obtained from {@link #acquire()}
+     * @param executor
+     */
+    abstract void release(CALExecutor executor);
+    
+    /**
+     * returns an executor obtained from {@link #acquire()} that has been asked
+     * to quit and so must not be used again.  A fresh executor takes its place.
+     * @param executor
+     */
+    abstract void discard(CALExecutor executor);
+    
+    /**
+     * @return the number of executors currently in use.
+     */
+    abstract int getActiveCount();
+    
+    /**
+     * Called when an executor obtained from {@link #acquire()} is kept after
+     * the call that acquired it returns, so that the pool does not hand it 
+     * to another call before it is released or discarded.
+     * @param executor
+     */
+    void lease(CALExecutor executor) {
+        // executors are only handed out again once they are released
+    }
+
+    protected CALExecutor makeExecutor() {
+        return workspaceManager.makeExecutorWithNewContextAndDefaultProperties();
+    }
+    
+    /**
+     * @param mode how executors are shared between threads
+     * @param size the maximum number of executors.  Only used by {@link RunQuark.ConcurrencyMode#POOLED}
+     * @param workspaceManager the workspace that the executors run against
+     * @return a new executor pool
+     */
+    static ExecutorPool make(RunQuark.ConcurrencyMode mode, int size, WorkspaceManager workspaceManager) {
+        switch (mode) {
+        case THREAD_LOCAL:
+            return new ThreadLocalPool(workspaceManager);
+        case POOLED:
+            return new BoundedPool(workspaceManager, size);
+        default:
+            return new SharedPool(workspaceManager);
+        }
+    }
+    
+    /**
+     * All callers share the same executor.  This is the original behaviour
+     * of RunQuark. 
+     */
+    private static final class SharedPool extends ExecutorPool {
+        private volatile CALExecutor executor;
+        private final AtomicInteger active = new AtomicInteger();
+        
+        SharedPool(WorkspaceManager workspaceManager) {
+            super(workspaceManager);
+            executor = makeExecutor();
+        }
+
+        @Override
+        CALExecutor acquire() {
+            active.incrementAndGet();
+            return executor;
+        }
+
+        @Override
+        void release(CALExecutor executor) {
+            active.decrementAndGet();
+        }
+        
+        /**
+         * Other evaluations running on the same executor have also been 
+         * told to quit, so they fail as well.
+         */
+        @Override
+        void discard(CALExecutor oldExecutor) {
+            synchronized (this) {
+                if (executor == oldExecutor) {
+                    executor = makeExecutor();
+                }
+            }
+            active.decrementAndGet();
+        }
+        
+        @Override
+        int getActiveCount() {
+            return active.get();
+        }
+    }
+    
+    /**
+     * Each thread lazily creates its own executor.  A leased executor is 
+     * taken from its thread, which creates another if it evaluates before 
+     * the lease ends.
+     */
+    private static final class ThreadLocalPool extends ExecutorPool {
+        private final AtomicInteger active = new AtomicInteger();
+        
+        /** the executor of each thread, or null if it has none that is free */
+        private final ThreadLocal<CALExecutor> executors = new ThreadLocal<CALExecutor>();
+
+        ThreadLocalPool(WorkspaceManager workspaceManager) {
+            super(workspaceManager);
+        }
+
+        @Override
+        CALExecutor acquire() {
+            active.incrementAndGet();
+            CALExecutor executor = executors.get();
+            if (executor == null) {
+                executor = makeExecutor();
+                executors.set(executor);
+            }
+            return executor;
+        }
+
+        @Override
+        void release(CALExecutor executor) {
+            // a leased executor goes back to the releasing thread, unless it 
+            // made another one in the meantime
+            if (executors.get() == null) {
+                executors.set(executor);
+            }
+            active.decrementAndGet();
+        }
+        
+        @Override
+        void discard(CALExecutor executor) {
+            if (executors.get() == executor) {
+                executors.remove();
+            }
+            active.decrementAndGet();
+        }
+        
+        @Override
+        void lease(CALExecutor executor) {
+            if (executors.get() == executor) {
+                executors.remove();
+            }
+        }
+        
+        @Override
+        int getActiveCount() {
+            return active.get();
+        }
+    }
+    
+    /**
+     * Executors are created on demand up to a fixed maximum and are then 
+     * recycled between threads.
+     */
+    private static final class BoundedPool extends ExecutorPool {
+        private final BlockingQueue<CALExecutor> idle;
+        private final int maxSize;
+        
+        /** the number of executors created so far */
+        private final AtomicInteger created = new AtomicInteger();
+        
+        BoundedPool(WorkspaceManager workspaceManager, int maxSize) {
+            super(workspaceManager);
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+            }
+            this.maxSize = maxSize;
+            this.idle = new ArrayBlockingQueue<CALExecutor>(maxSize);
+        }
+
+        @Override
+        CALExecutor acquire() {
+            CALExecutor executor = idle.poll();
+            if (executor != null) {
+                return executor;
+            }
+            
+            // try to grow the pool
+            while (true) {
+                int current = created.get();
+                if (current >= maxSize) {
+                    break;
+                }
+                if (created.compareAndSet(current, current + 1)) {
+                    return makeExecutor();
+                }
+            }
+            
+            // the pool is full, so wait for another thread to give one back
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return idle.take();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        void release(CALExecutor executor) {
+            idle.offer(executor);
+        }
+        
+        @Override
+        void discard(CALExecutor executor) {
+            // replace rather than shrink, so that waiting threads are woken
+            idle.offer(makeExecutor());
+        }
+        
+        @Override
+        int getActiveCount() {
+            return created.get() - idle.size();
+        }
+    }
+}
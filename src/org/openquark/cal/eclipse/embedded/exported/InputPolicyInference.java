@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * InputPolicyInference.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openquark.cal.compiler.FieldName;
+import org.openquark.cal.compiler.ModuleName;
+import org.openquark.cal.compiler.SourceModel;
+import org.openquark.cal.compiler.SourceModel.TypeExprDefn;
+import org.openquark.cal.compiler.SourceModel.TypeExprDefn.Record.FieldTypePair;
+import org.openquark.cal.compiler.io.InputPolicy;
+import org.openquark.cal.runtime.CalValue;
+
+/**
+ * Infers input policies from the runtime values passed into embedded 
+ * expressions.
+ * <p>
+ * Inference is recursive, so nested arrays, collections, and maps get
+ * precise types such as <code>[[Double]]</code> or 
+ * <code>{xs :: [Int], name :: String}</code>.  Every inferred type is
+ * interned, so equal types are the same instance and the same policy
+ * instance is returned for each type.  Types that can be determined from a 
+ * class alone, such as those of scalars and arrays of scalars, are cached 
+ * per class.
+ * <p>
+ * Collections and arrays of objects are inferred from the types of their 
+ * elements.  By default every element is checked, but a sample size can be 
+ * set so that only the first elements of large collections are checked.
+ */
+final class InputPolicyInference {
+    
+    private final static ModuleName PRELUDE_NAME = ModuleName
+            .make("Cal.Core.Prelude");
+
+    /** 
+     * marks classes that have no corresponding CAL type in the class cache.
+     * this is never interned, so it cannot be confused with the real Unit type
+     */
+    private static final TypeExprDefn NO_TYPE = 
+        TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Unit");
+
+    /** the canonical instance of each inferred type, keyed by its source text */
+    private static final ConcurrentMap<String, TypeExprDefn> internedTypes = 
+        new ConcurrentHashMap<String, TypeExprDefn>();
+
+    /** the type used for elements whose types cannot be reconciled */
+    private static final TypeExprDefn JOBJECT_TYPE = 
+        intern(TypeExprDefn.TypeCons.make(PRELUDE_NAME, "JObject"));
+
+    /** CAL types that are determined by a class alone */
+    private static final Map<Class<?>, TypeExprDefn> classTypes = 
+        new ConcurrentHashMap<Class<?>, TypeExprDefn>();
+
+    /** list types, keyed by the interned type of their elements */
+    private static final Map<TypeExprDefn, TypeExprDefn> listTypes = 
+        new ConcurrentHashMap<TypeExprDefn, TypeExprDefn>();
+
+    /** policies, keyed by the interned type that they marshal */
+    private static final ConcurrentMap<TypeExprDefn, InputPolicy> typePolicies = 
+        new ConcurrentHashMap<TypeExprDefn, InputPolicy>();
+
+    /** 
+     * the number of elements checked when inferring the type of a collection.
+     * 0 means that all elements are checked. 
+     */
+    private static volatile int sampleSize = 0;
+    
+    private InputPolicyInference() {
+        // not instantiated
+    }
+
+    /**
+     * @param arg
+     *            the argument whose input policy should be inferred
+     * @return the inferred input policy
+     * @see RunQuark#inferInputPolicy(Object)
+     */
+    static InputPolicy infer(Object arg) {
+        if (arg == null) {
+            return InputPolicy.DEFAULT_INPUT_POLICY;
+        } else if (arg instanceof CalValue) {
+            return InputPolicy.CAL_VALUE_INPUT_POLICY;
+        } else {
+            return policyFor(typeOf(arg));
+        }
+    }
+    
+    /**
+     * @param elementClass the class of the elements, or null if it is not 
+     * known 
+     * @return the policy for a collection whose elements are all of the
+     * given class
+     */
+    static InputPolicy listPolicy(Class<?> elementClass) {
+        if (elementClass == null) {
+            return policyFor(listOf(JOBJECT_TYPE));
+        }
+        TypeExprDefn elementType = classType(elementClass);
+        return policyFor(elementType == null ? null : listOf(elementType));
+    }
+    
+    /**
+     * @param c
+     * @return the policy that is inferred for every value of the class that 
+     * is not null
+     */
+    static InputPolicy classPolicy(Class<?> c) {
+        return policyFor(classType(c));
+    }
+    
+    /**
+     * @param size the number of elements to check when inferring the type 
+     * of a collection, or 0 to check every element
+     */
+    static void setSampleSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Sample size must not be negative: " + size);
+        }
+        sampleSize = size;
+    }
+    
+    /**
+     * @param type an interned type, or null if the type is not known
+     * @return the shared policy that marshals the type
+     */
+    private static InputPolicy policyFor(TypeExprDefn type) {
+        if (type == null) {
+            return InputPolicy.DEFAULT_INPUT_POLICY;
+        }
+        InputPolicy policy = typePolicies.get(type);
+        if (policy == null) {
+            policy = InputPolicy.makeTypedDefaultInputPolicy(type);
+            InputPolicy existing = typePolicies.putIfAbsent(type, policy);
+            if (existing != null) {
+                policy = existing;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * @param value a value that is not null
+     * @return the interned CAL type of the value, or null if it cannot be 
+     * determined
+     */
+    @SuppressWarnings("unchecked")
+    private static TypeExprDefn typeOf(Object value) {
+        if (value instanceof Map) {
+            return recordType((Map<FieldName, Object>) value);
+        } else if (value instanceof Collection) {
+            TypeExprDefn elementType = elementType(((Collection<?>) value).iterator());
+            return elementType == null ? null : listOf(elementType);
+        } else if (value instanceof CalValue) {
+            // CalValues can only be passed directly, not inside other values
+            return null;
+        }
+        
+        Class<?> c = value.getClass();
+        TypeExprDefn type = classType(c);
+        if (type == null && c.isArray() && !c.getComponentType().isPrimitive()) {
+            // the component class is not precise enough, so look at the elements
+            TypeExprDefn elementType = elementType(Arrays.asList((Object[]) value).iterator());
+            return elementType == null ? null : listOf(elementType);
+        }
+        return type;
+    }
+
+    /**
+     * @param vals the elements of a collection or array
+     * @return the interned type shared by all the sampled elements, JObject 
+     * if the collection is empty, contains null, or has elements of different 
+     * types, or null if the elements all have the same class but it has no 
+     * CAL type
+     */
+    private static TypeExprDefn elementType(Iterator<?> vals) {
+        if (!vals.hasNext()) {
+            return JOBJECT_TYPE;
+        }
+        
+        Object first = vals.next();
+        if (first == null) {
+            return JOBJECT_TYPE;
+        }
+        TypeExprDefn type = typeOf(first);
+        Class<?> c = first.getClass();
+        
+        // ensure that every sampled value in the collection has the same type.
+        // types are interned, so they can be compared by identity
+        int toCheck = sampleSize;
+        for (int checked = 1; vals.hasNext() && (toCheck == 0 || checked < toCheck); checked++) {
+            Object val = vals.next();
+            if (val == null) {
+                return JOBJECT_TYPE;
+            } else if (type == null) {
+                if (val.getClass() != c) {
+                    return JOBJECT_TYPE;
+                }
+            } else if (typeOf(val) != type) {
+                return JOBJECT_TYPE;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * @param map a map from field names to field values
+     * @return the interned record type with the inferred type of each field.
+     * fields whose types cannot be determined are given the type JObject
+     */
+    private static TypeExprDefn recordType(Map<FieldName, Object> map) {
+        FieldTypePair[] fields = new FieldTypePair[map.size()];
+        int cnt = 0;
+        for (final Entry<FieldName, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            TypeExprDefn fieldType = value == null ? null : typeOf(value);
+            fields[cnt] = FieldTypePair.make(SourceModel.Name.Field.make(entry.getKey()),
+                    fieldType == null ? JOBJECT_TYPE : fieldType);
+            cnt++;
+        }
+
+        return intern(TypeExprDefn.Record.make(null, fields));
+    }
+    
+    /**
+     * @param elementType an interned type
+     * @return the interned list type with the given element type
+     */
+    private static TypeExprDefn listOf(TypeExprDefn elementType) {
+        TypeExprDefn type = listTypes.get(elementType);
+        if (type == null) {
+            type = intern(SourceModel.TypeExprDefn.List.make(elementType));
+            listTypes.put(elementType, type);
+        }
+        return type;
+    }
+
+    /**
+     * @param c
+     * @return the interned CAL type of every instance of the class, or null 
+     * if there is none.  Arrays whose innermost component is a scalar, such
+     * as double[][], have a type.
+     */
+    private static TypeExprDefn classType(Class<?> c) {
+        TypeExprDefn type = classTypes.get(c);
+        if (type == null) {
+            if (c.isArray()) {
+                TypeExprDefn componentType = classType(c.getComponentType());
+                type = componentType == null ? null : listOf(componentType);
+            } else {
+                type = primitiveClassToTypeExpr(c);
+                if (type != null) {
+                    type = intern(type);
+                }
+            }
+            classTypes.put(c, type == null ? NO_TYPE : type);
+            return type;
+        }
+        return type == NO_TYPE ? null : type;
+    }
+    
+    /**
+     * @param type
+     * @return the canonical instance of the type
+     */
+    private static TypeExprDefn intern(TypeExprDefn type) {
+        String signature = type.toSourceText();
+        TypeExprDefn interned = internedTypes.putIfAbsent(signature, type);
+        return interned == null ? type : interned;
+    }
+
+    private static TypeExprDefn primitiveClassToTypeExpr(Class<?> c) {
+        if (c.equals(Integer.class) || c.equals(int.class)) {
+            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Int");
+        } else if (c.equals(Double.class) || c.equals(double.class)) {
+            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Double");
+        } else if (c.equals(Character.class) || c.equals(char.class)) {
+            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Character");
+        } else if (c.equals(Boolean.class) || c.equals(boolean.class)) {
+            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Boolean");
+        } else if (c.equals(String.class)) {
+            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "String");
+        } else if (c.equals(Byte.class) || c.equals(byte.class)) {
+            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Byte");
+        } else if (c.equals(Float.class) || c.equals(float.class)) {
+            return TypeExprDefn.TypeCons.make(PRELUDE_NAME, "Float");
+        } else {
+            return null;
+        }
+    }
+}
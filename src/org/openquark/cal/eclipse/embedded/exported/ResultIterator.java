@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ResultIterator.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.openquark.cal.machine.CALExecutor;
+
+/**
+ * Iterates over the elements of a CAL list that is evaluated incrementally.
+ * <p>
+ * This is returned for expressions evaluated with the 
+ * ITERATOR_OUTPUT_POLICY.  Each call to {@link #next()} evaluates just 
+ * enough of the list to produce the next element, so huge lists can be 
+ * processed in constant memory.
+ * <p>
+ * Since evaluation continues while the elements are read, the executor that 
+ * started the evaluation stays leased to this iterator until the list is 
+ * exhausted or {@link #close()} is called.  Clients that stop early must 
+ * call close, or the executor is never returned to the pool.  The iterator
+ * should be consumed by the thread that created it.  Other evaluations on 
+ * that thread get another executor while it is open.
+ */
+public final class ResultIterator implements Iterator<Object> {
+
+    private final Iterator<?> delegate;
+    
+    private final ExecutorPool pool;
+    
+    private CALExecutor executor;
+    
+    /** the cache entry of the expression, or null if it is not cached */
+    private EntryPointCache.Entry entry;
+    
+    /** true once the delegate has reported that there are no more elements */
+    private boolean exhausted = false;
+    
+    ResultIterator(Iterator<?> delegate, ExecutorPool pool, CALExecutor executor, 
+            EntryPointCache.Entry entry) {
+        this.delegate = delegate;
+        this.pool = pool;
+        this.executor = executor;
+        this.entry = entry;
+    }
+
+    public boolean hasNext() {
+        if (executor == null) {
+            return false;
+        }
+        boolean hasNext = false;
+        try {
+            hasNext = delegate.hasNext();
+            exhausted = !hasNext;
+        } finally {
+            // also release the executor if evaluating the list failed
+            if (!hasNext) {
+                close();
+            }
+        }
+        return hasNext;
+    }
+
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        boolean success = false;
+        try {
+            Object next = delegate.next();
+            success = true;
+            return next;
+        } finally {
+            if (!success) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * not supported, CAL lists are immutable
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Gives up the executor.  If the list was exhausted, the executor is 
+     * returned to the pool.  Otherwise it is asked to quit, so that the rest 
+     * of the list is never evaluated, and a fresh executor takes its place in
+     * the pool.  With the shared concurrency mode, evaluations running on the
+     * shared executor at that moment fail as well.  It is safe to call this 
+     * more than once.
+     */
+    public void close() {
+        if (executor != null) {
+            if (exhausted) {
+                pool.release(executor);
+            } else {
+                executor.requestQuit();
+                pool.discard(executor);
+            }
+            executor = null;
+        }
+        if (entry != null) {
+            // the function may be replaced once the list is no longer evaluated
+            entry.release();
+            entry = null;
+        }
+    }
+}
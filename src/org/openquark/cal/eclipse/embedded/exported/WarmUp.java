@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * WarmUp.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.FutureTask;
+
+import org.openquark.cal.compiler.io.InputPolicy;
+import org.openquark.cal.compiler.io.OutputPolicy;
+import org.openquark.cal.eclipse.embedded.exported.RunQuark.InputTuple;
+
+/**
+ * Prepares the CAL runtime in the background so that the first embedded 
+ * expression evaluated by an application does not pay for compiling the 
+ * workspace.
+ * <p>
+ * Warm-up compiles the default workspace, then declares the given modules, 
+ * and then compiles the prepared expressions stored in static fields of the
+ * given classes.  Finally, it declares the modules and compiles the 
+ * expressions listed in every precompile manifest on the class path.  These
+ * manifests are written at build time by scanning the sources for embedded
+ * editors.  Failures are reported and the remaining steps continue.
+ * <p>
+ * Warm-up can also be started when RunQuark is first used, by setting the 
+ * system properties {@link #WARM_UP_PROPERTY} and 
+ * {@link #WARM_UP_CLASSES_PROPERTY}.
+ */
+final class WarmUp implements Runnable {
+
+    /** set to "true" to compile the workspace as soon as RunQuark is loaded */
+    static final String WARM_UP_PROPERTY = "org.openquark.cal.eclipse.embedded.warmUp";
+    
+    /** 
+     * a comma separated list of classes whose prepared expressions are 
+     * compiled at warm-up.  Setting this property implies {@link #WARM_UP_PROPERTY}
+     */
+    static final String WARM_UP_CLASSES_PROPERTY = "org.openquark.cal.eclipse.embedded.warmUpClasses";
+    
+    private static final AsyncScheduler.DaemonThreadFactory threadFactory = 
+        new AsyncScheduler.DaemonThreadFactory("Embedded CAL warm-up ");
+    
+    /** the primitive classes, by name */
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+    static {
+        Class<?>[] primitives = { boolean.class, byte.class, char.class, short.class, 
+                int.class, long.class, float.class, double.class };
+        for (final Class<?> primitive : primitives) {
+            PRIMITIVES.put(primitive.getName(), primitive);
+        }
+    }
+    
+    private final String[] moduleTexts;
+    private final String[] classNames;
+    private final ClassLoader loader;
+    
+    private WarmUp(String[] moduleTexts, String[] classNames, ClassLoader loader) {
+        this.moduleTexts = moduleTexts == null ? new String[0] : moduleTexts.clone();
+        this.classNames = classNames == null ? new String[0] : classNames.clone();
+        this.loader = loader;
+    }
+    
+    /**
+     * Starts warming up on a new background thread
+     * 
+     * @param moduleTexts the text of modules to declare, or null
+     * @param classNames the names of classes whose prepared expressions are 
+     * compiled, or null
+     * @param loader the loader of the classes
+     * @return the warm-up, which is done when the workspace, modules, and 
+     * expressions are compiled
+     */
+    static FutureTask<Object> start(String[] moduleTexts, String[] classNames, 
+            ClassLoader loader) {
+        FutureTask<Object> task = new FutureTask<Object>(
+                new WarmUp(moduleTexts, classNames, loader), null);
+        threadFactory.newThread(task).start();
+        return task;
+    }
+    
+    /**
+     * Starts warming up if the system properties ask for it
+     */
+    static void startFromSystemProperties() {
+        String classList;
+        boolean enabled;
+        try {
+            classList = System.getProperty(WARM_UP_CLASSES_PROPERTY);
+            enabled = classList != null || Boolean.getBoolean(WARM_UP_PROPERTY);
+        } catch (SecurityException e) {
+            return;
+        }
+        if (enabled) {
+            String[] classNames = classList == null ? null : classList.split(",");
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            start(null, classNames, loader == null ? WarmUp.class.getClassLoader() : loader);
+        }
+    }
+
+    public void run() {
+        if (WorkspaceStartup.await() == null) {
+            return;
+        }
+        
+        for (final String moduleText : moduleTexts) {
+            declareModule(moduleText);
+        }
+        
+        for (final String className : classNames) {
+            String name = className.trim();
+            if (name.length() == 0) {
+                continue;
+            }
+            try {
+                // initializing the class creates its prepared expressions
+                Class<?> clazz = Class.forName(name, true, loader);
+                for (final PreparedExpression expr : preparedExpressions(clazz)) {
+                    expr.precompile();
+                }
+            } catch (ClassNotFoundException e) {
+                Diagnostics.reportFailure("Class not found during warm-up: " + name, null);
+            } catch (LinkageError e) {
+                Diagnostics.reportFailure("Could not load class during warm-up: " + name, e);
+            } catch (RuntimeException e) {
+                Diagnostics.reportFailure("Could not compile the expressions of " + name, e);
+            }
+        }
+        
+        try {
+            Enumeration<URL> manifests = loader.getResources(
+                    IEmbeddedCalConstants.PRECOMPILE_MANIFEST);
+            while (manifests.hasMoreElements()) {
+                precompile(manifests.nextElement());
+            }
+        } catch (IOException e) {
+            Diagnostics.reportFailure("Could not find the precompile manifests", e);
+        }
+    }
+    
+    private static void declareModule(String moduleText) {
+        try {
+            RunQuark.declareModule(moduleText, null, 0, 0, true, false);
+        } catch (RuntimeException e) {
+            Diagnostics.reportFailure("Could not declare module during warm-up", e);
+        }
+    }
+    
+    /**
+     * Declares the modules and compiles the expressions of a precompile 
+     * manifest.  Modules are numbered from 0 as <code>module.N</code>.  
+     * Expressions are numbered from 0 as <code>expression.N</code>, with 
+     * optional <code>expression.N.module</code> and 
+     * <code>expression.N.outputPolicy</code> entries.  The inputs of an 
+     * expression are numbered from 0 as <code>expression.N.input.K</code>, 
+     * which gives the name of the input, and 
+     * <code>expression.N.input.K.class</code>, which gives the class that 
+     * fixes its input policy: a primitive or a class in java.lang.
+     * 
+     * @param manifestURL
+     */
+    private static void precompile(URL manifestURL) {
+        Properties manifest = new Properties();
+        try {
+            InputStream in = manifestURL.openStream();
+            try {
+                manifest.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Diagnostics.reportFailure("Could not read precompile manifest " + manifestURL, e);
+            return;
+        }
+        
+        for (int cnt = 0; manifest.getProperty("module." + cnt) != null; cnt++) {
+            declareModule(manifest.getProperty("module." + cnt));
+        }
+        
+        for (int cnt = 0; manifest.getProperty("expression." + cnt) != null; cnt++) {
+            String prefix = "expression." + cnt;
+            String policyReference = manifest.getProperty(prefix + ".outputPolicy");
+            OutputPolicy outPolicy = null;
+            if (policyReference != null) {
+                outPolicy = outputPolicy(policyReference);
+                if (outPolicy == null) {
+                    // not a standard policy, so it can only be created by the application
+                    continue;
+                }
+            }
+            List<InputTuple> inputs = new ArrayList<InputTuple>();
+            List<InputPolicy> policies = new ArrayList<InputPolicy>();
+            for (int input = 0; manifest.getProperty(prefix + ".input." + input) != null; input++) {
+                Class<?> inputClass = inputClass(
+                        manifest.getProperty(prefix + ".input." + input + ".class"));
+                if (inputClass == null) {
+                    break;
+                }
+                InputPolicy policy = RunQuark.inputPolicyFor(inputClass);
+                inputs.add(new InputTuple(null, policy, 
+                        manifest.getProperty(prefix + ".input." + input)));
+                policies.add(policy);
+            }
+            if (manifest.getProperty(prefix + ".input." + inputs.size()) != null) {
+                Diagnostics.reportFailure("Unknown input class in precompile manifest for: " + 
+                        manifest.getProperty(prefix), null);
+                continue;
+            }
+            try {
+                RunQuark.getEntryPoint(manifest.getProperty(prefix), 
+                        inputs.toArray(new InputTuple[inputs.size()]), 
+                        policies.toArray(new InputPolicy[policies.size()]), 
+                        outPolicy, manifest.getProperty(prefix + ".module"));
+            } catch (RuntimeException e) {
+                Diagnostics.reportFailure("Could not compile expression during warm-up: " + 
+                        manifest.getProperty(prefix), e);
+            }
+        }
+    }
+    
+    /**
+     * @param name the name of a primitive, or of a class in java.lang
+     * @return the class, or null if there is no such class
+     */
+    private static Class<?> inputClass(String name) {
+        if (name == null) {
+            return null;
+        }
+        Class<?> primitive = PRIMITIVES.get(name);
+        if (primitive != null) {
+            return primitive;
+        }
+        try {
+            return Class.forName("java.lang." + name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * @param reference the Java source that refers to an output policy, such
+     * as <code>OutputPolicy.INT_OUTPUT_POLICY</code>
+     * @return the standard output policy named by the reference, or null if 
+     * it does not name one
+     */
+    private static OutputPolicy outputPolicy(String reference) {
+        String name = reference.substring(reference.lastIndexOf('.') + 1).trim();
+        try {
+            Field field = OutputPolicy.class.getField(name);
+            if (Modifier.isStatic(field.getModifiers()) && 
+                    field.getType() == OutputPolicy.class) {
+                return (OutputPolicy) field.get(null);
+            }
+        } catch (NoSuchFieldException e) {
+            // not a standard policy
+        } catch (IllegalAccessException e) {
+            // not a standard policy
+        }
+        return null;
+    }
+    
+    /**
+     * @param clazz
+     * @return the prepared expressions held in static fields of clazz
+     */
+    private static List<PreparedExpression> preparedExpressions(Class<?> clazz) {
+        List<PreparedExpression> exprs = new ArrayList<PreparedExpression>();
+        for (final Field field : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && 
+                    field.getType() == PreparedExpression.class) {
+                try {
+                    field.setAccessible(true);
+                    Object value = field.get(null);
+                    if (value != null) {
+                        exprs.add((PreparedExpression) value);
+                    }
+                } catch (IllegalAccessException e) {
+                    // skip this field
+                } catch (SecurityException e) {
+                    // skip this field
+                }
+            }
+        }
+        return exprs;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2007 BUSINESS OBJECTS SOFTWARE LIMITED
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *  
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *  
+ *     * Neither the name of Business Objects nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * WorkspaceStartup.java
+ */
+package org.openquark.cal.eclipse.embedded.exported;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openquark.cal.compiler.CompilerMessageLogger;
+import org.openquark.cal.compiler.MessageLogger;
+import org.openquark.cal.services.BasicCALServices;
+
+/**
+ * Compiles the default workspace exactly once, no matter how many threads 
+ * need it at the same time.  The first thread to ask does the compilation
+ * and the others wait for its result.
+ * <p>
+ * The messages from compiling the workspace are reported to 
+ * {@link Diagnostics}.  If the workspace cannot be compiled, the failure is 
+ * reported, the services that were already in use are kept, and the next 
+ * request tries again.
+ */
+final class WorkspaceStartup implements Callable<BasicCALServices> {
+
+    /** the startup that is in progress or done, or null if none has been started */
+    private static final AtomicReference<FutureTask<BasicCALServices>> startup = 
+        new AtomicReference<FutureTask<BasicCALServices>>();
+    
+    private static final List<RunQuark.StartupListener> listeners = 
+        new CopyOnWriteArrayList<RunQuark.StartupListener>();
+    
+    /** the time taken by the last successful startup, or -1 */
+    private static volatile long startupTimeMillis = -1;
+    
+    private WorkspaceStartup() {
+        // only created by start()
+    }
+    
+    /**
+     * @return the startup task.  It has not necessarily been run yet.
+     */
+    static FutureTask<BasicCALServices> start() {
+        while (true) {
+            FutureTask<BasicCALServices> current = startup.get();
+            if (current != null) {
+                return current;
+            }
+            FutureTask<BasicCALServices> task = 
+                new FutureTask<BasicCALServices>(new WorkspaceStartup());
+            if (startup.compareAndSet(null, task)) {
+                return task;
+            }
+        }
+    }
+    
+    /**
+     * Compiles the default workspace on the calling thread, or waits for 
+     * another thread that is already compiling it.
+     * 
+     * @return the services, or null if the workspace could not be compiled
+     */
+    static BasicCALServices await() {
+        FutureTask<BasicCALServices> task = start();
+        
+        // does nothing if another thread has already run the task
+        task.run();
+        
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    BasicCALServices services = task.get();
+                    if (services == null) {
+                        // let the next caller try again
+                        startup.compareAndSet(task, null);
+                    }
+                    return services;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    startup.compareAndSet(task, null);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("Could not start the CAL workspace", cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    public BasicCALServices call() {
+        long start = System.currentTimeMillis();
+        CompilerMessageLogger messageLogger = new MessageLogger();
+        BasicCALServices services = BasicCALServices.makeCompiled(
+                RunQuark.WORKSPACE_NAME, messageLogger);
+        Diagnostics.report(messageLogger);
+        
+        boolean succeeded = services != null;
+        if (succeeded) {
+            RunQuark.init(services);
+        } else {
+            Diagnostics.reportFailure("Could not compile the CAL workspace " + 
+                    RunQuark.WORKSPACE_NAME, null);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        if (succeeded) {
+            startupTimeMillis = elapsed;
+        }
+        for (final RunQuark.StartupListener listener : listeners) {
+            listener.workspaceStarted(elapsed, succeeded);
+        }
+        return services;
+    }
+    
+    /**
+     * @return the time taken to compile the default workspace, in 
+     * milliseconds, or -1 if it has not been compiled
+     */
+    static long getStartupTimeMillis() {
+        return startupTimeMillis;
+    }
+    
+    static void addListener(RunQuark.StartupListener listener) {
+        listeners.add(listener);
+    }
+    
+    static void removeListener(RunQuark.StartupListener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved. 
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+
+/*
+ * ExportPrecompileManifestAction.java
+ */
+package org.openquark.cal.eclipse.embedded.handlers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IAdaptable;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IPackageFragmentRoot;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.ui.IObjectActionDelegate;
+import org.eclipse.ui.IWorkbenchPart;
+import org.openquark.cal.eclipse.embedded.EmbeddedCALPlugin;
+import org.openquark.cal.eclipse.embedded.contained.EmbeddedRegionScanner;
+import org.openquark.cal.eclipse.embedded.exported.IEmbeddedCalConstants;
+
+/**
+ * Scans the Java sources of the selected projects for embedded editors and 
+ * writes the modules and expressions it finds to the precompile manifest in
+ * the first source folder.  The manifest is copied to the project's output 
+ * with the other resources, and RunQuark compiles everything it lists when 
+ * it warms up.  The action also adds the {@link PrecompileManifestBuilder} 
+ * to the projects, so that the manifest is exported again by every build.
+ */
+public class ExportPrecompileManifestAction implements IObjectActionDelegate {
+
+    /** The currently selected element. */
+    private ISelection selection;
+
+    public ExportPrecompileManifestAction() { }
+
+    public void setActivePart(IAction action, IWorkbenchPart targetPart) { }
+
+    public void run(IAction action) {
+        if (selection instanceof IStructuredSelection) {
+            for (Iterator it = ((IStructuredSelection) selection).iterator(); it.hasNext();) {
+                Object element = it.next();
+                IProject project = null;
+                if (element instanceof IProject) {
+                    project = (IProject) element;
+                } else if (element instanceof IAdaptable) {
+                    project = (IProject) ((IAdaptable) element).getAdapter(IProject.class);
+                }
+                if (project != null) {
+                    try {
+                        PrecompileManifestBuilder.addTo(project);
+                        exportManifest(JavaCore.create(project));
+                    } catch (CoreException e) {
+                        EmbeddedCALPlugin.logError("Error exporting the embedded CAL manifest of " + 
+                                project.getName(), e);
+                    }
+                }
+            }
+        }        
+    }
+    
+    /**
+     * Scans the project and writes its manifest.  Does not require a 
+     * workbench, so it is also run by the {@link PrecompileManifestBuilder}.
+     * The manifest is not written if its entries have not changed.
+     * 
+     * @param project
+     * @return the number of modules and expressions in the manifest
+     * @throws CoreException
+     */
+    public static int exportManifest(IJavaProject project) throws CoreException {
+        EmbeddedRegionScanner scanner = new EmbeddedRegionScanner();
+        scanner.scan(project);
+        IContainer sourceFolder = sourceFolder(project);
+        return sourceFolder == null ? 0 : writeManifest(sourceFolder, scanner);
+    }
+    
+    /**
+     * Updates the manifest of the project for a change to some of its 
+     * compilation units.  Only the changed units are scanned, and the 
+     * entries of the removed units are dropped.  The whole project is 
+     * scanned if there is no manifest to update.
+     * 
+     * @param project
+     * @param changed the units that were added or changed
+     * @param removed the paths of the units that were removed
+     * @return the number of modules and expressions in the manifest
+     * @throws CoreException
+     */
+    public static int updateManifest(IJavaProject project, 
+            Collection<ICompilationUnit> changed, Collection<IPath> removed) 
+            throws CoreException {
+        IContainer sourceFolder = sourceFolder(project);
+        if (sourceFolder == null) {
+            return 0;
+        }
+        IFile manifest = sourceFolder.getFile(new Path(IEmbeddedCalConstants.PRECOMPILE_MANIFEST));
+        EmbeddedRegionScanner scanner = new EmbeddedRegionScanner();
+        if (!manifest.exists() || !scanner.load(properties(contents(manifest)))) {
+            return exportManifest(project);
+        }
+        for (final IPath path : removed) {
+            scanner.remove(path.toPortableString());
+        }
+        for (final ICompilationUnit unit : changed) {
+            scanner.scan(unit);
+        }
+        return writeManifest(sourceFolder, scanner);
+    }
+    
+    /**
+     * @param project
+     * @return the first source folder of the project, which holds the 
+     * manifest, or null if the project has none
+     * @throws CoreException
+     */
+    private static IContainer sourceFolder(IJavaProject project) throws CoreException {
+        for (final IPackageFragmentRoot root : project.getPackageFragmentRoots()) {
+            if (root.getKind() == IPackageFragmentRoot.K_SOURCE && 
+                    root.getResource() instanceof IContainer) {
+                return (IContainer) root.getResource();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Writes the manifest, unless its entries have not changed
+     * 
+     * @param sourceFolder the folder that holds the manifest
+     * @param scanner
+     * @return the number of modules and expressions in the manifest
+     * @throws CoreException
+     */
+    private static int writeManifest(IContainer sourceFolder, EmbeddedRegionScanner scanner) 
+            throws CoreException {
+        Path manifestPath = new Path(IEmbeddedCalConstants.PRECOMPILE_MANIFEST);
+        createFolders(sourceFolder, manifestPath.removeLastSegments(1));
+        IFile manifest = sourceFolder.getFile(manifestPath);
+        byte[] newContents = scanner.toManifest();
+        ByteArrayInputStream contents = new ByteArrayInputStream(newContents);
+        if (manifest.exists()) {
+            if (entries(newContents).equals(entries(contents(manifest)))) {
+                return scanner.size();
+            }
+            manifest.setContents(contents, true, false, null);
+        } else {
+            manifest.create(contents, true, null);
+        }
+        return scanner.size();
+    }
+    
+    /**
+     * @param contents the contents of a manifest
+     * @return the lines of the manifest that are not comments.  The comments
+     * hold the time the manifest was written.
+     */
+    private static List<String> entries(byte[] contents) {
+        List<String> entries = new ArrayList<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(contents), "ISO-8859-1"));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.startsWith("#")) {
+                    entries.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // cannot happen when reading from memory
+        }
+        return entries;
+    }
+    
+    /**
+     * @param contents the contents of a manifest
+     * @return the entries of the manifest
+     */
+    private static Properties properties(byte[] contents) {
+        Properties properties = new Properties();
+        try {
+            properties.load(new ByteArrayInputStream(contents));
+        } catch (IOException e) {
+            // cannot happen when reading from memory
+        }
+        return properties;
+    }
+    
+    /**
+     * @param manifest
+     * @return the contents of the manifest, or nothing if it cannot be read
+     * @throws CoreException
+     */
+    private static byte[] contents(IFile manifest) throws CoreException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            InputStream in = manifest.getContents(true);
+            try {
+                byte[] buffer = new byte[4096];
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // the manifest is rewritten
+            return new byte[0];
+        }
+        return out.toByteArray();
+    }
+    
+    private static void createFolders(IContainer parent, IPath path) 
+            throws CoreException {
+        for (int cnt = 0; cnt < path.segmentCount(); cnt++) {
+            IFolder folder = parent.getFolder(new Path(path.segment(cnt)));
+            if (!folder.exists()) {
+                folder.create(true, true, null);
+            }
+            parent = folder;
+        }
+    }
+
+    public void selectionChanged(IAction action, ISelection selection) {
+        this.selection = selection;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2007 Business Objects Software Limited and others.
+ * All rights reserved. 
+ * This file is made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Business Objects Software Limited - initial API and implementation
+ *******************************************************************************/
+
+
+/*
+ * PrecompileManifestBuilder.java
+ */
+package org.openquark.cal.eclipse.embedded.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.ICommand;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+import org.openquark.cal.eclipse.embedded.EmbeddedCALPlugin;
+
+/**
+ * Keeps the precompile manifest of a project up to date.  The manifest is 
+ * updated whenever a Java source changes, before the Java builder runs, so
+ * that the Java builder copies the new manifest to the project's output.  
+ * An incremental build rescans only the compilation units in the delta; a
+ * full build scans the whole project.  The builder runs in headless builds
+ * as well as in the workbench.
+ */
+public class PrecompileManifestBuilder extends IncrementalProjectBuilder {
+
+    public static final String BUILDER_ID = 
+        EmbeddedCALPlugin.PLUGIN_ID + ".precompileManifestBuilder";
+    
+    public PrecompileManifestBuilder() { }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    protected IProject[] build(int kind, Map args, IProgressMonitor monitor) 
+            throws CoreException {
+        IProject project = getProject();
+        if (!project.hasNature(JavaCore.NATURE_ID)) {
+            return null;
+        }
+        IJavaProject javaProject = JavaCore.create(project);
+        IResourceDelta delta = getDelta(project);
+        if (kind == FULL_BUILD || delta == null) {
+            ExportPrecompileManifestAction.exportManifest(javaProject);
+            return null;
+        }
+        
+        final List<ICompilationUnit> changed = new ArrayList<ICompilationUnit>();
+        final List<IPath> removed = new ArrayList<IPath>();
+        delta.accept(new IResourceDeltaVisitor() {
+            public boolean visit(IResourceDelta child) {
+                IResource resource = child.getResource();
+                if (resource.getType() != IResource.FILE || 
+                        !"java".equals(resource.getFileExtension())) {
+                    return true;
+                }
+                if (child.getKind() == IResourceDelta.REMOVED) {
+                    removed.add(resource.getFullPath());
+                } else {
+                    IJavaElement element = JavaCore.create(resource);
+                    if (element instanceof ICompilationUnit && element.exists()) {
+                        changed.add((ICompilationUnit) element);
+                    }
+                }
+                return false;
+            }
+        });
+        if (!changed.isEmpty() || !removed.isEmpty()) {
+            ExportPrecompileManifestAction.updateManifest(javaProject, changed, removed);
+        }
+        return null;
+    }
+    
+    /**
+     * Adds the builder to the project, ahead of the Java builder, if it is 
+     * not already there
+     * 
+     * @param project
+     * @throws CoreException
+     */
+    public static void addTo(IProject project) throws CoreException {
+        IProjectDescription description = project.getDescription();
+        ICommand[] commands = description.getBuildSpec();
+        for (final ICommand command : commands) {
+            if (BUILDER_ID.equals(command.getBuilderName())) {
+                return;
+            }
+        }
+        ICommand[] newCommands = new ICommand[commands.length + 1];
+        newCommands[0] = description.newCommand();
+        newCommands[0].setBuilderName(BUILDER_ID);
+        System.arraycopy(commands, 0, newCommands, 1, commands.length);
+        description.setBuildSpec(newCommands);
+        project.setDescription(description, null);
+    }
+}